@@ -35,6 +35,7 @@ package com.levelonelabs.aim;
 import org.w3c.dom.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -42,17 +43,38 @@ import java.util.Iterator;
 /**
  * Represents and AIM Buddy
  * 
+ * Most buddies never get messages, roles or preferences, so those are only
+ * allocated when first used and are null until then.
+ * 
  * @author Will Gorman, Scott Oster
  * @created November 8, 2001
  */
 public class AIMBuddy implements XMLizable {
+    // user class flags, from the UC field of UPDATE_BUDDY2
+    public static final int UC_AOL = 1;
+    public static final int UC_ADMIN = 2;
+    public static final int UC_UNCONFIRMED = 4;
+    public static final int UC_NORMAL = 8;
+    public static final int UC_UNAVAILABLE = 16;
+
+    private static final String[] NO_ROLES = new String[0];
+
     String name;
     transient boolean online;
     transient int warningAmount = 0;
+    // seconds since the epoch, 0 if unknown
+    transient int signOnTime;
+    // when the buddy went idle, in milliseconds since the epoch, 0 if not
+    // idle. Storing the start rather than the minutes means the idle time
+    // never needs updating, it is just read against the clock.
+    transient long idleSince;
+    transient int userClass;
     boolean banned;
-    ArrayList messages = new ArrayList();
-    HashMap roles = new HashMap();
-    HashMap preferences = new HashMap();
+    ArrayList messages;
+    // usually empty and never more than a handful, so a plain array beats a
+    // map
+    String[] roles = NO_ROLES;
+    HashMap preferences;
     String group;
     String alias;
 
@@ -118,6 +140,9 @@ public class AIMBuddy implements XMLizable {
      *            The new preference value
      */
     public void setPreference(String pref, String val) {
+        if (preferences == null) {
+            preferences = new HashMap(4);
+        }
         preferences.put(pref, val);
     }
 
@@ -157,6 +182,9 @@ public class AIMBuddy implements XMLizable {
      * @return The preference value
      */
     public String getPreference(String pref) {
+        if (preferences == null) {
+            return null;
+        }
         return (String) preferences.get(pref);
     }
 
@@ -167,10 +195,37 @@ public class AIMBuddy implements XMLizable {
      * @return The preferences value
      */
     public HashMap getPreferences() {
+        if (preferences == null) {
+            preferences = new HashMap(4);
+        }
         return preferences;
     }
 
 
+    /**
+     * Gets the names of the preferences that are set, without allocating a
+     * preference table for buddies that have none
+     * 
+     * @return iterator of preference names
+     */
+    public Iterator getPreferenceNames() {
+        if (preferences == null) {
+            return Collections.EMPTY_LIST.iterator();
+        }
+        return preferences.keySet().iterator();
+    }
+
+
+    /**
+     * Gets the roles of the AIMBuddy object
+     * 
+     * @return a copy of the role names
+     */
+    public String[] getRoles() {
+        return (String[]) roles.clone();
+    }
+
+
     /**
      * Adds a feature to the Role attribute of the AIMBuddy object
      * 
@@ -178,7 +233,13 @@ public class AIMBuddy implements XMLizable {
      *            The feature to be added to the Role attribute
      */
     public void addRole(String role) {
-        roles.put(role, role);
+        if (hasRole(role)) {
+            return;
+        }
+        String[] grown = new String[roles.length + 1];
+        System.arraycopy(roles, 0, grown, 0, roles.length);
+        grown[roles.length] = role;
+        roles = grown;
     }
 
 
@@ -188,6 +249,9 @@ public class AIMBuddy implements XMLizable {
      * @return The messages value
      */
     public ArrayList getMessages() {
+        if (messages == null) {
+            messages = new ArrayList(4);
+        }
         return messages;
     }
 
@@ -199,7 +263,7 @@ public class AIMBuddy implements XMLizable {
      *            The feature to be added to the Message attribute
      */
     public void addMessage(String message) {
-        messages.add(message);
+        getMessages().add(message);
     }
 
 
@@ -207,7 +271,7 @@ public class AIMBuddy implements XMLizable {
      * Remove all messages
      */
     public void clearMessages() {
-        messages.clear();
+        messages = null;
     }
 
 
@@ -217,7 +281,7 @@ public class AIMBuddy implements XMLizable {
      * @return true for more than 0 messages
      */
     public boolean hasMessages() {
-        return !messages.isEmpty();
+        return messages != null && !messages.isEmpty();
     }
 
 
@@ -228,7 +292,12 @@ public class AIMBuddy implements XMLizable {
      * @return true if buddy has the role
      */
     public boolean hasRole(String role) {
-        return roles.containsKey(role);
+        for (int i = 0; i < roles.length; i++) {
+            if (roles[i].equals(role)) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -272,40 +341,35 @@ public class AIMBuddy implements XMLizable {
             setBanned(false);
         }
 
-        // parse roles
-        roles = new HashMap();
-        NodeList list = fullStateElement.getElementsByTagName("role");
-        for (int i = 0; i < list.getLength(); i++) {
-            Element roleElem = (Element) list.item(i);
-            String role = roleElem.getAttribute("name");
-            addRole(role);
-        }
-
-        // parse messages
-        messages = new ArrayList();
-        list = fullStateElement.getElementsByTagName("message");
-        for (int i = 0; i < list.getLength(); i++) {
-            Element messElem = (Element) list.item(i);
-            NodeList cdatas = messElem.getChildNodes();
-            for (int j = 0; j < cdatas.getLength(); j++) {
-                Node node = cdatas.item(j);
-                if (node.getNodeType() == Node.CDATA_SECTION_NODE) {
-                    String message = node.getNodeValue();
-                    addMessage(message);
-                    break;
+        // one pass over the direct children; getElementsByTagName would walk
+        // the whole subtree once per tag
+        roles = NO_ROLES;
+        messages = null;
+        preferences = null;
+        for (Node child = fullStateElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element elem = (Element) child;
+            String tag = elem.getTagName();
+            if (tag.equals("role")) {
+                addRole(elem.getAttribute("name"));
+            } else if (tag.equals("preference")) {
+                setPreference(elem.getAttribute("name"), elem.getAttribute("value"));
+            } else if (tag.equals("message")) {
+                // a message holding "]]>" is written as two CDATA sections
+                StringBuffer message = null;
+                for (Node data = elem.getFirstChild(); data != null; data = data.getNextSibling()) {
+                    if (data.getNodeType() == Node.CDATA_SECTION_NODE) {
+                        message = (message == null) ? new StringBuffer() : message;
+                        message.append(data.getNodeValue());
+                    }
+                }
+                if (message != null) {
+                    addMessage(message.toString());
                 }
             }
         }
-
-        // parse prefs
-        preferences = new HashMap();
-        list = fullStateElement.getElementsByTagName("preference");
-        for (int i = 0; i < list.getLength(); i++) {
-            Element prefElem = (Element) list.item(i);
-            String pref = prefElem.getAttribute("name");
-            String val = prefElem.getAttribute("value");
-            this.setPreference(pref, val);
-        }
     }
 
 
@@ -318,15 +382,14 @@ public class AIMBuddy implements XMLizable {
         emptyStateElement.setAttribute("group", this.getGroup());
         emptyStateElement.setAttribute("isBanned", Boolean.toString(this.isBanned()));
 
-        Iterator roleit = roles.keySet().iterator();
-        while (roleit.hasNext()) {
-            String role = (String) roleit.next();
+        for (int i = 0; i < roles.length; i++) {
+            String role = roles[i];
             Element roleElem = doc.createElement("role");
             roleElem.setAttribute("name", role);
             emptyStateElement.appendChild(roleElem);
         }
 
-        Iterator prefs = preferences.keySet().iterator();
+        Iterator prefs = getPreferenceNames();
         while (prefs.hasNext()) {
             String pref = (String) prefs.next();
             Element prefElem = doc.createElement("preference");
@@ -335,7 +398,7 @@ public class AIMBuddy implements XMLizable {
             emptyStateElement.appendChild(prefElem);
         }
 
-        for (int i = 0; i < messages.size(); i++) {
+        for (int i = 0; messages != null && i < messages.size(); i++) {
             String message = (String) messages.get(i);
             Element messElem = doc.createElement("message");
             CDATASection data = doc.createCDATASection(message);
@@ -365,6 +428,103 @@ public class AIMBuddy implements XMLizable {
     }
 
 
+    /**
+     * Sets the status reported by the server when the buddy signs on or
+     * changes state
+     * 
+     * @param signOnTime
+     *            seconds since the epoch, 0 if unknown
+     * @param idleMinutes
+     *            minutes the buddy has been idle, 0 if not idle
+     * @param userClass
+     *            UC_ flags
+     */
+    public void setStatus(int signOnTime, int idleMinutes, int userClass) {
+        this.signOnTime = signOnTime;
+        this.userClass = userClass;
+        if (idleMinutes > 0) {
+            this.idleSince = System.currentTimeMillis() - idleMinutes * 60000L;
+        } else {
+            this.idleSince = 0;
+        }
+    }
+
+
+    /**
+     * Gets the time the buddy signed on
+     * 
+     * @return seconds since the epoch, 0 if unknown
+     */
+    public int getSignOnTime() {
+        return signOnTime;
+    }
+
+
+    /**
+     * Gets the time the buddy went idle
+     * 
+     * @return milliseconds since the epoch, 0 if not idle
+     */
+    public long getIdleSince() {
+        return idleSince;
+    }
+
+
+    /**
+     * Gets how long the buddy has been idle
+     * 
+     * @return whole minutes, 0 if not idle
+     */
+    public int getIdleMinutes() {
+        if (idleSince == 0) {
+            return 0;
+        }
+        return (int) ((System.currentTimeMillis() - idleSince) / 60000L);
+    }
+
+
+    /**
+     * Gets the user class reported by the server
+     * 
+     * @return UC_ flags
+     */
+    public int getUserClass() {
+        return userClass;
+    }
+
+
+    /**
+     * Parse the UC field of UPDATE_BUDDY2: position 1 'A' for AOL, position 2
+     * 'A' admin, 'U' unconfirmed or 'O' normal, position 3 'U' unavailable.
+     * 
+     * @param uc
+     * @return UC_ flags
+     */
+    public static int parseUserClass(String uc) {
+        int flags = 0;
+        if (uc.length() > 0 && uc.charAt(0) == 'A') {
+            flags |= UC_AOL;
+        }
+        if (uc.length() > 1) {
+            switch (uc.charAt(1)) {
+                case 'A' :
+                    flags |= UC_ADMIN;
+                    break;
+                case 'U' :
+                    flags |= UC_UNCONFIRMED;
+                    break;
+                case 'O' :
+                    flags |= UC_NORMAL;
+                    break;
+            }
+        }
+        if (uc.length() > 2 && uc.charAt(2) == 'U') {
+            flags |= UC_UNAVAILABLE;
+        }
+        return flags;
+    }
+
+
     /**
      * Set the group the buddy is in, in the buddy list
      * 
@@ -36,24 +36,37 @@ import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 
@@ -64,14 +77,52 @@ import java.util.logging.Logger;
  * @created September 4, 2001
  */
 public class AIMClient implements Runnable, AIMSender {
-    // check connection ever "TIME_DELAY" milliseconds (5 mins)
-    private static final long TIME_DELAY = 5 * 60 * 1000;
-    private static final String PING = "PING";
-
-    private AimConnectionCheck watchdogCheck;
-    private AimConnectionCheck watchdogVerify;
-    boolean connectionVerified = false;
-    private Timer connectionCheck = new Timer();
+    // send a FLAP keepalive after this long without writing anything
+    private static final long KEEPALIVE_INTERVAL = 30 * 1000;
+    // probe the server after this long without reading anything
+    private static final long READ_IDLE_TIMEOUT = 30 * 1000;
+    // give up on the connection if the probe is not answered in this long
+    private static final long PROBE_TIMEOUT = 5 * 1000;
+    // probe at least this often, so busy links get RTT samples too
+    private static final long PROBE_INTERVAL = 60 * 1000;
+
+    private volatile long lastReadTime;
+    private volatile long lastWriteTime;
+    // when the outstanding liveness probe was sent, 0 if none
+    private volatile long probeSentTime;
+    private volatile long probeSentNanos;
+    private volatile long lastProbeTime;
+    // the status update answering the probe is not a real buddy event
+    private volatile boolean probeReplyPending;
+    // how often the connection is checked while signed on
+    private static final long CHECK_INTERVAL = 3 * 1000;
+    private AIMTimer.Timeout livenessCheck;
+    // set by the timer, the reader thread does the actual check
+    private volatile boolean checkDue;
+
+    // reconnect delays start here and double with each failed attempt
+    private static final long RECONNECT_MIN_DELAY = 2 * 1000;
+    private static final long RECONNECT_MAX_DELAY = 5 * 60 * 1000;
+    // a session that lasts this long resets the reconnect delay
+    private static final long STABLE_SESSION = 60 * 1000;
+    // when the current session signed on
+    private long signedOnTime;
+
+    // guards reader, generation, reconnectAttempts and the scheduled timeouts
+    private final Object lifecycle = new Object();
+    // the thread running the current session, null between sessions
+    private Thread reader;
+    // bumped when a session starts, so a stale reconnect does nothing
+    private int generation;
+    // cleared by signOff or a rejected login, stops the reconnects
+    private volatile boolean wantOnline;
+    private int reconnectAttempts;
+    private AIMTimer.Timeout pendingReconnect;
+    private final Random random = new Random();
+    // set once a session has signed on; the sessions after it restore state
+    private volatile boolean signedOnBefore;
+    private volatile boolean restorePending;
+    private volatile String awayMessage = "";
 
     static Logger logger = Logger.getLogger(AIMClient.class.getName());
 
@@ -93,7 +144,14 @@ public class AIMClient implements Runnable, AIMSender {
 
     private int authorizerPort = 29999;
 
-    private List aimListeners = new ArrayList();
+    // the reader thread walks a snapshot while others add and remove
+    private List aimListeners = new CopyOnWriteArrayList();
+
+    private AIMEventPublisher eventPublisher;
+
+    private AIMListenerStats listenerStats = new AIMListenerStats();
+
+    private AIMConnectionStats connectionStats = new AIMConnectionStats();
 
     String name;
 
@@ -116,7 +174,39 @@ public class AIMClient implements Runnable, AIMSender {
 
     private DataOutputStream out;
 
-    private Map<String,AIMBuddy> buddyHash;
+    // keyed by normalized name; written by the reader thread and read from
+    // any thread
+    private ConcurrentMap<String,AIMBuddy> buddyHash;
+
+    // bumped after every change to buddyHash, so stale name snapshots can be
+    // spotted without locking
+    private final AtomicInteger buddyVersion = new AtomicInteger();
+
+    private volatile NameSnapshot buddyNames;
+
+    // group name -> AIMGroup of normalized buddy names, kept in step with
+    // buddyHash. Guards itself and buddyGroups.
+    private final Map groupIndex = new HashMap();
+
+    // normalized buddy name -> the group it is indexed under
+    private final Map buddyGroups = new HashMap();
+
+    // normalized buddy name -> buddy, for every buddy the server says is
+    // online. Written under the groupIndex lock, read without locking.
+    private final ConcurrentMap<String,AIMBuddy> onlineBuddies = new ConcurrentHashMap<String,AIMBuddy>();
+
+    // group name -> int[1] number of online buddies in it, guarded by
+    // groupIndex
+    private final Map onlineCounts = new HashMap();
+
+    // minute the buddy went idle (idleSince / 60000) -> Set of normalized
+    // names. One bucket per minute, so "idle longer than" is a range scan
+    // and nothing has to tick while buddies stay idle. Guards itself and
+    // idleMinutes.
+    private final TreeMap idleIndex = new TreeMap();
+
+    // normalized buddy name -> Long bucket it is filed under in idleIndex
+    private final Map idleMinutes = new HashMap();
 
     private int sendLimit = MAX_POINTS;
 
@@ -128,6 +218,12 @@ public class AIMClient implements Runnable, AIMSender {
 
     private Set denied;
 
+    private File configCache;
+
+    // normalized names loaded from the config cache and not yet confirmed by
+    // the server's config, null when the cache was not used
+    private Set cachedBuddies;
+
 
     /**
      * Constructor for the AIMClient object
@@ -144,7 +240,7 @@ public class AIMClient implements Runnable, AIMSender {
     public AIMClient(String name, String pass, String info, String response, boolean autoAddUsers) {
         this.nonUserResponse = response;
 
-        buddyHash = new HashMap<String,AIMBuddy>();
+        buddyHash = new ConcurrentHashMap<String,AIMBuddy>();
         permitted = new HashSet();
         denied = new HashSet();
         this.name = imNormalize(name);
@@ -262,7 +358,7 @@ public class AIMClient implements Runnable, AIMSender {
      * 
      * @return normalized string
      */
-    private static String imNormalize(String in) {
+    static String imNormalize(String in) {
         String out = "";
         in = in.toLowerCase();
         char[] arr = in.toCharArray();
@@ -288,28 +384,344 @@ public class AIMClient implements Runnable, AIMSender {
 
 
     /**
-     * Get an iterator for all the current buddy names
+     * Get an iterator for all the current buddy names. The iterator walks a
+     * consistent snapshot which is shared between callers until the buddy
+     * list next changes, so it is cheap to call repeatedly and safe to use
+     * while the list is being updated.
      * 
      * @return iterator
      */
     public Iterator getBuddyNames() {
-        return Arrays.asList(buddyHash.keySet().toArray()).iterator();
+        int version = buddyVersion.get();
+        NameSnapshot snapshot = buddyNames;
+        if (snapshot == null || snapshot.version != version) {
+            snapshot = new NameSnapshot(version, buddyHash.keySet().toArray(new String[0]));
+            buddyNames = snapshot;
+        }
+        return Collections.unmodifiableList(Arrays.asList(snapshot.names)).iterator();
     }
 
 
     /**
-     * Sign on to aim server
+     * Store a buddy under its normalized name, replacing any existing entry
+     * 
+     * @param buddy
      */
-    public void signOn() {
-        new Thread(this).start();
+    private void putBuddy(AIMBuddy buddy) {
+        String buddyname = imNormalize(buddy.getName());
+        AIMBuddy old = buddyHash.put(buddyname, buddy);
+        buddyVersion.incrementAndGet();
+        indexGroup(buddyname, buddy.getGroup());
+        if (old != null && old != buddy && onlineBuddies.containsKey(buddyname)) {
+            // the replacement takes over the old entry's presence
+            buddy.setOnline(true);
+            onlineBuddies.put(buddyname, buddy);
+        }
+    }
+
+
+    /**
+     * Store a buddy under its normalized name unless one is already there
+     * 
+     * @param buddy
+     * @return the buddy already stored, or null if this one was added
+     */
+    private AIMBuddy putBuddyIfAbsent(AIMBuddy buddy) {
+        String buddyname = imNormalize(buddy.getName());
+        AIMBuddy existing = buddyHash.putIfAbsent(buddyname, buddy);
+        if (existing == null) {
+            buddyVersion.incrementAndGet();
+            indexGroup(buddyname, buddy.getGroup());
+        }
+        return existing;
+    }
+
+
+    /**
+     * Drop a buddy from the list
+     * 
+     * @param buddyname
+     *            normalized name of the buddy
+     */
+    private void removeBuddyEntry(String buddyname) {
+        AIMBuddy removed = buddyHash.remove(buddyname);
+        if (removed != null) {
+            buddyVersion.incrementAndGet();
+            setPresence(buddyname, removed, false);
+            indexGroup(buddyname, null);
+            indexIdle(buddyname, 0);
+        }
+    }
+
+
+    /**
+     * Record a buddy going on or off line, in the buddy and the presence index
+     * 
+     * @param buddyname
+     *            normalized name of the buddy
+     * @param buddy
+     * @param on
+     *            true if the buddy is now online
+     */
+    private void setPresence(String buddyname, AIMBuddy buddy, boolean on) {
+        buddy.setOnline(on);
+        synchronized (groupIndex) {
+            boolean changed;
+            if (on) {
+                changed = onlineBuddies.put(buddyname, buddy) == null;
+            } else {
+                changed = onlineBuddies.remove(buddyname) != null;
+            }
+            if (changed) {
+                countOnline((String) buddyGroups.get(buddyname), on ? 1 : -1);
+            }
+        }
+    }
+
+
+    /**
+     * Adjust the online count of a group. Caller holds the groupIndex lock.
+     * 
+     * @param group
+     *            the group, may be null for buddies not in the index
+     * @param delta
+     */
+    private void countOnline(String group, int delta) {
+        if (group == null) {
+            return;
+        }
+        int[] count = (int[]) onlineCounts.get(group);
+        if (count == null) {
+            count = new int[1];
+            onlineCounts.put(group, count);
+        }
+        count[0] += delta;
+        if (count[0] <= 0) {
+            onlineCounts.remove(group);
+        }
+    }
+
+
+    /**
+     * Mark every buddy offline, as when our own connection goes away
+     */
+    private void clearPresence() {
+        synchronized (groupIndex) {
+            for (Iterator it = onlineBuddies.values().iterator(); it.hasNext();) {
+                ((AIMBuddy) it.next()).setOnline(false);
+            }
+            onlineBuddies.clear();
+            onlineCounts.clear();
+        }
+        synchronized (idleIndex) {
+            idleIndex.clear();
+            idleMinutes.clear();
+        }
+    }
+
+
+    /**
+     * Store the status fields of an UPDATE_BUDDY2 on the buddy and file it in
+     * the idle index
+     * 
+     * @param buddyname
+     *            normalized name of the buddy
+     * @param buddy
+     * @param signOnTime
+     *            seconds since the epoch
+     * @param idle
+     *            minutes idle, 0 if not idle
+     * @param userClass
+     *            AIMBuddy.UC_ flags
+     */
+    private void updateStatus(String buddyname, AIMBuddy buddy, int signOnTime, int idle, int userClass) {
+        buddy.setStatus(signOnTime, idle, userClass);
+        if (buddyHash.get(buddyname) == buddy) {
+            indexIdle(buddyname, buddy.getIdleSince());
+        }
+    }
+
+
+    /**
+     * File a buddy in the idle index
+     * 
+     * @param buddyname
+     *            normalized name of the buddy
+     * @param idleSince
+     *            when the buddy went idle, 0 to drop it from the index
+     */
+    private void indexIdle(String buddyname, long idleSince) {
+        synchronized (idleIndex) {
+            Long oldMinute = (Long) idleMinutes.remove(buddyname);
+            if (oldMinute != null) {
+                Set bucket = (Set) idleIndex.get(oldMinute);
+                bucket.remove(buddyname);
+                if (bucket.isEmpty()) {
+                    idleIndex.remove(oldMinute);
+                }
+            }
+            if (idleSince != 0) {
+                Long minute = Long.valueOf(idleSince / 60000L);
+                Set bucket = (Set) idleIndex.get(minute);
+                if (bucket == null) {
+                    bucket = new HashSet();
+                    idleIndex.put(minute, bucket);
+                }
+                bucket.add(buddyname);
+                idleMinutes.put(buddyname, minute);
+            }
+        }
+    }
 
-        // check the connection
-        watchdogCheck = new AimConnectionCheck(this, true);
 
-        // verify the message was received 5 secs later
-        watchdogVerify = new AimConnectionCheck(this, false);
-        connectionCheck.scheduleAtFixedRate(watchdogCheck, TIME_DELAY, TIME_DELAY);
-        connectionCheck.scheduleAtFixedRate(watchdogVerify, TIME_DELAY + 5000, TIME_DELAY);
+    /**
+     * Get the buddies that have been idle for at least the given time
+     * 
+     * @param minutes
+     * @return a list of the idle AIMBuddy objects
+     */
+    public List getIdleBuddies(int minutes) {
+        long cutoff = System.currentTimeMillis() - minutes * 60000L;
+        List names = new ArrayList();
+        synchronized (idleIndex) {
+            Iterator buckets = idleIndex.headMap(Long.valueOf(cutoff / 60000L + 1)).values().iterator();
+            while (buckets.hasNext()) {
+                names.addAll((Set) buckets.next());
+            }
+        }
+        List idle = new ArrayList(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            AIMBuddy buddy = (AIMBuddy) buddyHash.get(names.get(i));
+            // the last bucket may hold buddies a few seconds short
+            if (buddy != null && buddy.getIdleSince() != 0 && buddy.getIdleSince() <= cutoff) {
+                idle.add(buddy);
+            }
+        }
+        return idle;
+    }
+
+
+    /**
+     * Is a buddy online, according to the server's last notification
+     * 
+     * @param buddyName
+     * @return true if the buddy is online
+     */
+    public boolean isOnline(String buddyName) {
+        return onlineBuddies.containsKey(imNormalize(buddyName));
+    }
+
+
+    /**
+     * Get the buddies that are online
+     * 
+     * @return a snapshot list of the online AIMBuddy objects
+     */
+    public List getOnlineBuddies() {
+        return new ArrayList(onlineBuddies.values());
+    }
+
+
+    /**
+     * Get the number of buddies online
+     * 
+     * @return the number of online buddies
+     */
+    public int getOnlineCount() {
+        return onlineBuddies.size();
+    }
+
+
+    /**
+     * Get the number of buddies online in one group
+     * 
+     * @param group
+     * @return the number of online buddies in the group
+     */
+    public int getOnlineCount(String group) {
+        synchronized (groupIndex) {
+            int[] count = (int[]) onlineCounts.get(group);
+            return count == null ? 0 : count[0];
+        }
+    }
+
+
+    /**
+     * Move a buddy to another group in the group index
+     * 
+     * @param buddyname
+     *            normalized name of the buddy
+     * @param group
+     *            the new group, or null to drop the buddy from the index
+     * @return the group the buddy was indexed under before, or null
+     */
+    private String indexGroup(String buddyname, String group) {
+        synchronized (groupIndex) {
+            String oldGroup = (String) buddyGroups.get(buddyname);
+            if (oldGroup != null && oldGroup.equals(group)) {
+                return oldGroup;
+            }
+            if (onlineBuddies.containsKey(buddyname)) {
+                countOnline(oldGroup, -1);
+                countOnline(group, 1);
+            }
+            if (oldGroup != null) {
+                AIMGroup old = (AIMGroup) groupIndex.get(oldGroup);
+                old.remove(buddyname);
+                if (old.size() == 0) {
+                    groupIndex.remove(oldGroup);
+                }
+            }
+            if (group == null) {
+                buddyGroups.remove(buddyname);
+            } else {
+                AIMGroup target = (AIMGroup) groupIndex.get(group);
+                if (target == null) {
+                    target = new AIMGroup(group);
+                    groupIndex.put(group, target);
+                }
+                target.add(buddyname);
+                buddyGroups.put(buddyname, group);
+            }
+            return oldGroup;
+        }
+    }
+
+
+    /**
+     * Get the names of all groups that have at least one buddy
+     * 
+     * @return iterator over a snapshot of the group names
+     */
+    public Iterator getGroupNames() {
+        synchronized (groupIndex) {
+            return new ArrayList(groupIndex.keySet()).iterator();
+        }
+    }
+
+
+    /**
+     * Get the buddies in a group, in the order they were added to it
+     * 
+     * @param group
+     * @return a copy of the normalized names of the buddies in the group
+     */
+    public List getGroupBuddyNames(String group) {
+        synchronized (groupIndex) {
+            AIMGroup g = (AIMGroup) groupIndex.get(group);
+            if (g == null) {
+                return new ArrayList();
+            }
+            return g.getList();
+        }
+    }
+
+
+    /**
+     * Sign on to aim server
+     */
+    public void signOn() {
+        connect();
 
         // give the server time to log us on before returning flow to the user
         // check for success once every 2 secs, up to 20 secs
@@ -329,15 +741,24 @@ public class AIMClient implements Runnable, AIMSender {
 
 
     /**
-     * Sign off from aim server
+     * Sign off from aim server. Subscribers get the disconnect and then their
+     * streams complete.
      */
     public void signOff() {
-        // cancel the ping until signon is called again
-    	if(watchdogCheck != null)
-    		watchdogCheck.cancel();
-    	if(watchdogVerify != null)
-    		watchdogVerify.cancel();
+        synchronized (lifecycle) {
+            wantOnline = false;
+            cancelReconnect();
+        }
         signoff("User request");
+        AIMEventPublisher publisher;
+        synchronized (this) {
+            publisher = eventPublisher;
+            eventPublisher = null;
+        }
+        if (publisher != null) {
+            removeAIMListener(publisher);
+            publisher.close();
+        }
     }
 
     /**
@@ -350,11 +771,117 @@ public class AIMClient implements Runnable, AIMSender {
     }
 
     /**
-     * Main processing method for the AIMClient object
+     * Start signing on in a background thread and return at once. Until
+     * signOff is called, a dropped or failed connection is retried after a
+     * growing, randomized delay.
+     */
+    public void connect() {
+        synchronized (lifecycle) {
+            wantOnline = true;
+            cancelReconnect();
+            if (reader != null) {
+                return;
+            }
+            startReader();
+        }
+    }
+
+
+    /**
+     * Start a thread for a new session and claim the reader slot for it.
+     * Call with the lifecycle lock held, so signOff can not slip in between.
+     */
+    private void startReader() {
+        reader = new Thread(this, "aim-reader-" + name);
+        generation++;
+        reader.start();
+    }
+
+
+    /**
+     * Main processing method for the AIMClient object. Runs one session;
+     * returns at once if another thread is already running one, or if
+     * signOff was called before it got going.
      */
     public void run() {
+        synchronized (lifecycle) {
+            if (reader != Thread.currentThread()) {
+                // called directly rather than through connect()
+                if (reader != null && reader.isAlive()) {
+                    logger.warning("Session already running in " + reader.getName() + ", not starting another.");
+                    return;
+                }
+                reader = Thread.currentThread();
+                generation++;
+            }
+            if (!wantOnline) {
+                reader = null;
+                return;
+            }
+        }
+        try {
+            session();
+        } finally {
+            synchronized (lifecycle) {
+                reader = null;
+                if (wantOnline) {
+                    scheduleReconnect();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Schedule the next connection attempt. The delay doubles with each
+     * failure up to RECONNECT_MAX_DELAY, and a random part of it is taken off
+     * so clients dropped at the same moment do not all come back at once.
+     * Call with the lifecycle lock held.
+     */
+    private void scheduleReconnect() {
+        long delay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_MIN_DELAY << Math.min(reconnectAttempts, 16));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        reconnectAttempts++;
+        logger.info("Reconnecting in " + delay + "ms (attempt " + reconnectAttempts + ").");
+
+        final int scheduledGeneration = generation;
+        pendingReconnect = AIMTimer.getShared().schedule(new Runnable() {
+            public void run() {
+                synchronized (lifecycle) {
+                    if (!wantOnline || reader != null || generation != scheduledGeneration) {
+                        return;
+                    }
+                    pendingReconnect = null;
+                    connectionStats.reconnecting();
+                    startReader();
+                }
+            }
+        }, delay);
+    }
+
+
+    /**
+     * Drop any scheduled reconnect. Call with the lifecycle lock held.
+     */
+    private void cancelReconnect() {
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel();
+            pendingReconnect = null;
+        }
+    }
+
+
+    /**
+     * Connect, sign on and read from the server until the connection drops
+     */
+    private void session() {
         int length;
         seqNo = (int) Math.floor(Math.random() * 65535.0);
+        // the last session's streams are closed; a failed connect must not
+        // leave them looking usable
+        connection = null;
+        in = null;
+        out = null;
 
         // AOL likes to have a bunch of bogus IPs for some reason, so lets try
         // them all until one works
@@ -456,9 +983,26 @@ public class AIMClient implements Runnable, AIMSender {
             // * Client sends TOC toc_init_done message
             frameSend("toc_init_done\0");
             online = true;
+            if (!wantOnline) {
+                // signOff ran while we were still connecting
+                signoff("Signed off while connecting");
+                return;
+            }
+            // the config that follows a reconnect restores this session's
+            // permit, deny and away state
+            restorePending = signedOnBefore;
+            signedOnBefore = true;
             generateConnected();
             frameSend("toc_set_info \"" + info + "\"\0");
             logger.info("Done with AIM logon");
+            lastReadTime = System.currentTimeMillis();
+            lastProbeTime = lastReadTime;
+            signedOnTime = lastReadTime;
+            probeSentTime = 0;
+            probeReplyPending = false;
+            checkDue = false;
+            connectionStats.signedOn();
+            scheduleLivenessCheck(CHECK_INTERVAL);
             connection.setSoTimeout(3000);
         } catch (InterruptedIOException e) {
             signoff("2.25");
@@ -473,6 +1017,8 @@ public class AIMClient implements Runnable, AIMSender {
                 length = in.readShort();
                 data = new byte[length];
                 in.readFully(data);
+                lastReadTime = System.currentTimeMillis();
+                probeSentTime = 0;
                 fromAIM(data);
                 //logger.info("SEQNO:"+seqNo);
             } catch (InterruptedIOException e) {
@@ -483,11 +1029,114 @@ public class AIMClient implements Runnable, AIMSender {
                 generateDisconnected();
                 break;
             }
+            // the read times out every few seconds, so this runs on time
+            if (checkDue) {
+                checkDue = false;
+                if (!checkConnection()) {
+                    logger.info("*** AIM -- CONNECTION PROBLEM(" + new Date() + "): probe was not answered!");
+                    logger.info("****** Assuming it was dropped, issuing restart.");
+                    // returning ends the session, which schedules the reconnect
+                    signoff("Connection Dropped!");
+                    return;
+                }
+                // a server that takes the sign on and then drops us keeps
+                // backing off; only a session that stays up resets it
+                if (System.currentTimeMillis() - signedOnTime >= STABLE_SESSION) {
+                    synchronized (lifecycle) {
+                        reconnectAttempts = 0;
+                    }
+                }
+            }
         }
        signoff("Connection reset.");
     }
 
 
+    /**
+     * Flag a connection check on the shared timer until it is signed off.
+     * The timer thread is shared by every client, so it never does I/O
+     * itself; the reader thread picks the flag up and does the check.
+     * 
+     * @param delay
+     *            milliseconds until the next check
+     */
+    private void scheduleLivenessCheck(long delay) {
+        synchronized (lifecycle) {
+            final int sessionGeneration = generation;
+            livenessCheck = AIMTimer.getShared().schedule(new Runnable() {
+                public void run() {
+                    // under the lock, so a tick racing signoff's cancel can
+                    // not re-arm itself into the next session
+                    synchronized (lifecycle) {
+                        if (!online || generation != sessionGeneration) {
+                            return;
+                        }
+                        checkDue = true;
+                        scheduleLivenessCheck(CHECK_INTERVAL);
+                    }
+                }
+            }, delay);
+        }
+    }
+
+
+    /**
+     * Keep the connection alive and check it still works, called from the
+     * reader thread every few seconds. Sends a FLAP keepalive when nothing
+     * has been written for a while. When nothing has been read for a while,
+     * asks the server for our own status; any frame coming back proves the
+     * link is up.
+     * 
+     * @return false if an earlier probe went unanswered and the connection
+     *         should be considered dead
+     */
+    private boolean checkConnection() {
+        long now = System.currentTimeMillis();
+        try {
+            if (probeSentTime != 0) {
+                if (now - probeSentTime < PROBE_TIMEOUT) {
+                    return true;
+                }
+                // a late reply must not swallow a real update about us
+                probeReplyPending = false;
+                connectionStats.probeMissed();
+                return false;
+            }
+            if (now - lastReadTime >= READ_IDLE_TIMEOUT || now - lastProbeTime >= PROBE_INTERVAL) {
+                probeSentTime = now;
+                lastProbeTime = now;
+                probeSentNanos = System.nanoTime();
+                probeReplyPending = true;
+                connectionStats.probeSent();
+                frameSend("toc_get_status " + this.name + "\0");
+            } else if (now - lastWriteTime >= KEEPALIVE_INTERVAL) {
+                sendKeepAlive();
+                connectionStats.keepaliveSent();
+            }
+        } catch (IOException e) {
+            logger.severe("Keepalive failed: " + e);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Send an empty FLAP keepalive frame. Costs no rate limit points.
+     * 
+     * @throws IOException
+     */
+    private synchronized void sendKeepAlive() throws IOException {
+        out.writeByte(42); // *
+        out.writeByte(5); // KEEP_ALIVE
+        out.writeShort(seqNo); // SEQ NO
+        seqNo = (seqNo + 1) & 65535;
+        out.writeShort(0); // DATA SIZE
+        out.flush();
+        lastWriteTime = System.currentTimeMillis();
+    }
+
+
     /**
      * @param name2
      * @param pass2
@@ -512,10 +1161,70 @@ public class AIMClient implements Runnable, AIMSender {
      *            The listener
      */
     public void addAIMListener(AIMListener listener) {
+        listenerStats.added(listener);
         aimListeners.add(listener);
     }
 
 
+    /**
+     * Stop sending aim events to a listener, and drop its statistics
+     * 
+     * @param listener
+     *            The listener
+     */
+    public void removeAIMListener(AIMListener listener) {
+        aimListeners.remove(listener);
+        if (!aimListeners.contains(listener)) {
+            listenerStats.removed(listener);
+        }
+    }
+
+
+    /**
+     * Gets the health statistics of the connection: liveness probe round
+     * trip times, missed probes, keepalives and reconnects
+     * 
+     * @return the statistics, kept across reconnects
+     */
+    public AIMConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+
+    /**
+     * Gets the latency and failure statistics of the registered listeners.
+     * Use it to find the handler that is holding up the reader thread, or to
+     * change the budget after which a slow call is logged.
+     * 
+     * @return the listener statistics for this client
+     */
+    public AIMListenerStats getListenerStats() {
+        return listenerStats;
+    }
+
+
+    /**
+     * Register a subscriber to pull aim events at its own pace. Unlike an
+     * AIMListener, the subscriber is only handed events it has requested
+     * through its AIMSubscription. The subscription completes when signOff
+     * is called.
+     *
+     * @param subscriber
+     *            The subscriber
+     */
+    public void subscribe(AIMEventSubscriber subscriber) {
+        AIMEventPublisher publisher;
+        synchronized (this) {
+            if (eventPublisher == null) {
+                eventPublisher = new AIMEventPublisher();
+                addAIMListener(eventPublisher);
+            }
+            publisher = eventPublisher;
+        }
+        publisher.subscribe(subscriber);
+    }
+
+
     /**
      * Send a message to a buddy
      * 
@@ -553,65 +1262,136 @@ public class AIMClient implements Runnable, AIMSender {
             return;
         }
 
-        if (getBuddy(buddy.getName()) != null) {
+        if (putBuddyIfAbsent(buddy) != null) {
             return;
         }
 
         if (this.online) {
             String toBeSent = "toc2_new_buddies {g:" + buddy.getGroup() + "\nb:" + imNormalize(buddy.getName()) + "\n}";
             try {
-                frameSend(toBeSent + "\0");
+                frameSend(toBeSent + "\0");
+            } catch (IOException e) {
+                logger.severe(e.toString());
+                signoff("Error adding buddy");
+            }
+        }
+    }
+
+
+    /**
+     * Convience method for adding multiple buddies
+     * 
+     * @param buddyList
+     *            List of AIMBuddy
+     */
+    public void addBuddies(List buddyList) {
+        // make a list of buddys for each "group"
+        Map groupMap = createGroupMap(buddyList);
+
+        // iterate over the groups and send the buddies
+        Iterator groupIter = groupMap.keySet().iterator();
+        while (groupIter.hasNext()) {
+            String group = (String) groupIter.next();
+            List groupList = (List) groupMap.get(group);
+            List names = new ArrayList(groupList.size());
+            for (int i = 0; i < groupList.size(); i++) {
+                AIMBuddy buddy = (AIMBuddy) groupList.get(i);
+                putBuddy(buddy);
+                names.add(imNormalize(buddy.getName()));
+            }
+            sendNewBuddies(group, names.iterator());
+        }
+    }
+
+
+    /**
+     * Send the whole buddy list to the server, straight from the group index
+     */
+    private void sendBuddyList() {
+        String[] groups;
+        List[] members;
+        synchronized (groupIndex) {
+            groups = (String[]) groupIndex.keySet().toArray(new String[groupIndex.size()]);
+            members = new List[groups.length];
+            for (int i = 0; i < groups.length; i++) {
+                members[i] = ((AIMGroup) groupIndex.get(groups[i])).getList();
+            }
+        }
+        for (int i = 0; i < groups.length; i++) {
+            sendNewBuddies(groups[i], members[i].iterator());
+        }
+    }
+
+
+    /**
+     * Tell the server about buddies in one group, packing as many into each
+     * frame as will fit. Does nothing while offline; the whole list is sent
+     * once the config arrives.
+     * 
+     * @param group
+     * @param names
+     *            iterator of normalized buddy names
+     */
+    private void sendNewBuddies(String group, Iterator names) {
+        if (!this.online) {
+            return;
+        }
+        String header = "toc2_new_buddies {g:" + group + "\n";
+        StringBuffer currentlist = new StringBuffer(header);
+        while (names.hasNext()) {
+            currentlist.append("b:").append(names.next()).append("\n");
+            if (currentlist.length() > 1800) {
+                try {
+                    frameSend(currentlist + "}\0");
+                    currentlist = new StringBuffer(header);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    logger.severe("ERROR adding buddies.");
+                }
+            }
+        }
+        // send the left overs (if any)
+        if (currentlist.length() > header.length()) {
+            try {
+                frameSend(currentlist + "}\0");
             } catch (IOException e) {
-                logger.severe(e.toString());
-                signoff("Error adding buddy");
+                e.printStackTrace();
+                logger.severe("ERROR adding buddies.");
             }
         }
-
-        // logger.info("Added buddy to hash");
-        buddyHash.put(imNormalize(buddy.getName()), buddy);
     }
 
 
     /**
-     * Convience method for adding multiple buddies
+     * Move a buddy to another group in the buddy list
      * 
-     * @param buddyList
-     *            List of AIMBuddy
+     * @param buddy
+     *            The buddy to move
+     * @param group
+     *            The group to move the buddy to
      */
-    public void addBuddies(List buddyList) {
-        // make a list of buddys for each "group"
-        Map groupMap = createGroupMap(buddyList);
+    public void moveBuddy(AIMBuddy buddy, String group) {
+        if (buddy == null || group == null) {
+            return;
+        }
 
-        // iterate over the groups and send the buddies
-        Iterator groupIter = groupMap.keySet().iterator();
-        while (groupIter.hasNext()) {
-            String group = (String) groupIter.next();
-            String currentlist = "toc2_new_buddies {g:" + group + "\n";
-            List groupList = (List) groupMap.get(group);
-            for (int i = 0; i < groupList.size(); i++) {
-                AIMBuddy buddy = (AIMBuddy) groupList.get(i);
-                buddyHash.put(imNormalize(buddy.getName()), buddy);
-                currentlist += "b:" + imNormalize(buddy.getName()) + "\n";
-                if (currentlist.length() > 1800) {
-                    try {
-                        frameSend(currentlist + "}\0");
-                        currentlist = "toc2_new_buddies {g:" + group + "\n";
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        logger.severe("ERROR adding buddies.");
-                    }
-                }
-            }
-            // send the left overs (if any)
-            if (currentlist.length() > ("toc2_new_buddies {g:" + group + "\n").length()) {
-                try {
-                    frameSend(currentlist + "}\0");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    logger.severe("ERROR adding buddies.");
-                }
-            }
+        String buddyname = imNormalize(buddy.getName());
+        if (buddyHash.get(buddyname) != buddy) {
+            buddy.setGroup(group);
+            return;
+        }
 
+        buddy.setGroup(group);
+        String oldGroup = indexGroup(buddyname, group);
+        if (oldGroup == null || oldGroup.equals(group) || !this.online) {
+            return;
+        }
+        try {
+            frameSend("toc2_remove_buddy " + buddyname + " " + oldGroup + "\0");
+            frameSend("toc2_new_buddies {g:" + group + "\nb:" + buddyname + "\n}\0");
+        } catch (IOException e) {
+            logger.severe(e.toString());
+            signoff("Error moving buddy");
         }
     }
 
@@ -675,7 +1455,7 @@ public class AIMClient implements Runnable, AIMSender {
         }
 
         // logger.info("Removed buddy from hash");
-        buddyHash.remove(imNormalize(buddy.getName()));
+        removeBuddyEntry(buddyname);
     }
 
 
@@ -697,7 +1477,7 @@ public class AIMClient implements Runnable, AIMSender {
             List groupList = (List) groupMap.get(group);
             for (int i = 0; i < groupList.size(); i++) {
                 AIMBuddy buddy = (AIMBuddy) groupList.get(i);
-                buddyHash.remove(imNormalize(buddy.getName()));
+                removeBuddyEntry(imNormalize(buddy.getName()));
                 currentlist += " " + imNormalize(buddy.getName());
                 if (currentlist.length() > 1800) {
                     try {
@@ -805,6 +1585,44 @@ public class AIMClient implements Runnable, AIMSender {
     }
 
 
+    /**
+     * Send a permit or deny command for many buddies, packing as many names
+     * into each frame as will fit
+     * 
+     * @param command
+     *            toc2_add_permit or toc2_add_deny
+     * @param names
+     *            iterator of normalized buddy names
+     * @param place
+     *            where to say the connection was dropped if sending fails
+     */
+    private void sendPermitDenyList(String command, Iterator names, String place) {
+        StringBuffer currentlist = new StringBuffer(command);
+        while (names.hasNext()) {
+            currentlist.append(" ").append(names.next());
+            if (currentlist.length() > 1800) {
+                try {
+                    frameSend(currentlist + "\0");
+                    currentlist = new StringBuffer(command);
+                } catch (IOException e) {
+                    logger.severe(e.toString());
+                    signoff(place);
+                    return;
+                }
+            }
+        }
+        // send the left overs (if any)
+        if (currentlist.length() > command.length()) {
+            try {
+                frameSend(currentlist + "\0");
+            } catch (IOException e) {
+                logger.severe(e.toString());
+                signoff(place);
+            }
+        }
+    }
+
+
     /**
      * protocol methods *
      * 
@@ -812,7 +1630,7 @@ public class AIMClient implements Runnable, AIMSender {
      * @exception IOException
      *                Description of Exception
      */
-    private void frameSend(String toBeSent) throws IOException {
+    private synchronized void frameSend(String toBeSent) throws IOException {
         if (sendLimit < MAX_POINTS) {
             sendLimit += ((System.currentTimeMillis() - lastFrameSendTime) / RECOVER_RATE);
             // never let the limit exceed the max, else this code won't work
@@ -844,6 +1662,38 @@ public class AIMClient implements Runnable, AIMSender {
         int warnAmount = getBuddy(this.name).getWarningAmount();
         sendLimit -= (1 + Math.pow((3 * warnAmount) / 100, 2));
         lastFrameSendTime = System.currentTimeMillis();
+        lastWriteTime = lastFrameSendTime;
+    }
+
+
+    /**
+     * One event delivered to one listener; see dispatch
+     */
+    private interface ListenerCall {
+        void call(AIMListener listener);
+    }
+
+
+    /**
+     * Deliver an event to every listener, timing each call and keeping one
+     * that throws from stopping the rest
+     * 
+     * @param type
+     *            AIMEvent type constant, for the listener statistics
+     * @param call
+     *            makes the call on each listener
+     */
+    private void dispatch(int type, ListenerCall call) {
+        for (Iterator iter = aimListeners.iterator(); iter.hasNext();) {
+            AIMListener listener = (AIMListener) iter.next();
+            long start = System.nanoTime();
+            try {
+                call.call(listener);
+            } catch (Exception e) {
+                listenerStats.failed(listener, type, e);
+            }
+            listenerStats.record(listener, type, System.nanoTime() - start);
+        }
     }
 
 
@@ -853,13 +1703,13 @@ public class AIMClient implements Runnable, AIMSender {
      * @param from
      * @param request
      */
-    private void generateMessage(String from, String request) {
+    private void generateMessage(String from, final String request) {
         AIMBuddy aimbud = getBuddy(from);
         if (aimbud == null) {
             if (autoAddUsers) {
                 aimbud = new AIMBuddy(from);
                 addBuddy(aimbud);
-                aimbud.setOnline(true);
+                setPresence(imNormalize(from), aimbud, true);
             } else {
                 logger.info("MESSAGE FROM A NON BUDDY(" + from + ")");
                 // only send a response if a non-empty one is configured
@@ -873,13 +1723,12 @@ public class AIMClient implements Runnable, AIMSender {
         if (aimbud.isBanned()) {
             logger.info("Ignoring message from banned user (" + from + "):" + request);
         } else {
-            for (int i = 0; i < aimListeners.size(); i++) {
-                try {
-                    ((AIMListener) aimListeners.get(i)).handleMessage(aimbud, request);
-                } catch (Exception e) {
-                    e.printStackTrace();
+            final AIMBuddy sender = aimbud;
+            dispatch(AIMEvent.MESSAGE, new ListenerCall() {
+                public void call(AIMListener listener) {
+                    listener.handleMessage(sender, request);
                 }
-            }
+            });
         }
     }
 
@@ -891,41 +1740,35 @@ public class AIMClient implements Runnable, AIMSender {
      * @param amount
      *            of warning
      */
-    private void generateWarning(String from, int amount) {
-        AIMBuddy aimbud = getBuddy(from);
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleWarning(aimbud, amount);
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void generateWarning(String from, final int amount) {
+        final AIMBuddy aimbud = getBuddy(from);
+        dispatch(AIMEvent.WARNING, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleWarning(aimbud, amount);
             }
-        }
+        });
     }
 
 
     /**
      * Send connected event to all listeners.
      */
-    private void generateConfigReady(Map<String, AIMBuddy> buddyHash2) {
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleConfigReady(buddyHash2);
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void generateConfigReady(final Map<String, AIMBuddy> buddyHash2) {
+        dispatch(AIMEvent.CONFIG_READY, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleConfigReady(buddyHash2);
             }
-        }
+        });
     }
     /**
      * Send connected event to all listeners.
      */
     private void generateConnected() {
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleConnected();
-            } catch (Exception e) {
-                e.printStackTrace();
+        dispatch(AIMEvent.CONNECTED, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleConnected();
             }
-        }
+        });
     }
 
 
@@ -933,13 +1776,11 @@ public class AIMClient implements Runnable, AIMSender {
      * Send disconnected event to all listeners.
      */
     private void generateDisconnected() {
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleDisconnected();
-            } catch (Exception e) {
-                e.printStackTrace();
+        dispatch(AIMEvent.DISCONNECTED, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleDisconnected();
             }
-        }
+        });
     }
 
 
@@ -950,14 +1791,12 @@ public class AIMClient implements Runnable, AIMSender {
      *            code
      * @param message
      */
-    private void generateError(String error, String message) {
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleError(error, message);
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void generateError(final String error, final String message) {
+        dispatch(AIMEvent.ERROR, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleError(error, message);
             }
-        }
+        });
     }
 
 
@@ -968,8 +1807,8 @@ public class AIMClient implements Runnable, AIMSender {
      *            that signed on
      * @param message
      */
-    private void generateBuddySignOn(String buddy, String message) {
-        AIMBuddy aimbud = getBuddy(buddy);
+    private void generateBuddySignOn(String buddy, final String message) {
+        final AIMBuddy aimbud = getBuddy(buddy);
         if (aimbud == null) {
         	//aimbud = new AIMBuddy(buddy);
         	//addBuddy(aimbud);
@@ -978,15 +1817,13 @@ public class AIMClient implements Runnable, AIMSender {
         }
         logger.warning("AIM SIGN ON " + buddy);
         if (!aimbud.isOnline()) {
-            aimbud.setOnline(true);
-            for (int i = 0; i < aimListeners.size(); i++) {
-                try {
-                	logger.severe("SENDING HNDLE BUDDY SIGN ON");
-                    ((AIMListener) aimListeners.get(i)).handleBuddySignOn(aimbud, message);
-                } catch (Exception e) {
-                    e.printStackTrace();
+            setPresence(imNormalize(buddy), aimbud, true);
+            dispatch(AIMEvent.BUDDY_SIGN_ON, new ListenerCall() {
+                public void call(AIMListener listener) {
+                    logger.severe("SENDING HNDLE BUDDY SIGN ON");
+                    listener.handleBuddySignOn(aimbud, message);
                 }
-            }
+            });
         }
     }
 
@@ -998,22 +1835,20 @@ public class AIMClient implements Runnable, AIMSender {
      *            that signed off
      * @param message
      */
-    private void generateBuddySignOff(String buddy, String message) {
-        AIMBuddy aimbud = getBuddy(buddy);
+    private void generateBuddySignOff(String buddy, final String message) {
+        final AIMBuddy aimbud = getBuddy(buddy);
         if (aimbud == null) {
             logger.severe("ERROR:  NOTIFICATION ABOUT NON BUDDY SIGN OFF(" + buddy + ")");
             return;
         }
 
         // logger.info("XML = \n" + aimbud.toXML());
-        aimbud.setOnline(false);
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleBuddySignOff(aimbud, message);
-            } catch (Exception e) {
-                e.printStackTrace();
+        setPresence(imNormalize(buddy), aimbud, false);
+        dispatch(AIMEvent.BUDDY_SIGN_OFF, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleBuddySignOff(aimbud, message);
             }
-        }
+        });
     }
 
 
@@ -1025,19 +1860,17 @@ public class AIMClient implements Runnable, AIMSender {
      * @param message
      *            DOCUMENT ME!
      */
-    private void generateBuddyAvailable(String buddy, String message) {
-        AIMBuddy aimbud = getBuddy(buddy);
+    private void generateBuddyAvailable(String buddy, final String message) {
+        final AIMBuddy aimbud = getBuddy(buddy);
         if (aimbud == null) {
             logger.severe("ERROR:  NOTIFICATION ABOUT NON BUDDY AVAILABLE(" + buddy + ")");
             return;
         }
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleBuddyAvailable(aimbud, message);
-            } catch (Exception e) {
-                e.printStackTrace();
+        dispatch(AIMEvent.BUDDY_AVAILABLE, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleBuddyAvailable(aimbud, message);
             }
-        }
+        });
     }
 
 
@@ -1049,20 +1882,18 @@ public class AIMClient implements Runnable, AIMSender {
      * @param message
      *            DOCUMENT ME!
      */
-    private void generateBuddyUnavailable(String buddy, String message) {
-        AIMBuddy aimbud = getBuddy(buddy);
+    private void generateBuddyUnavailable(String buddy, final String message) {
+        final AIMBuddy aimbud = getBuddy(buddy);
         if (aimbud == null) {
             logger.severe("ERROR:  NOTIFICATION ABOUT NON BUDDY UNAVAILABLE(" + buddy + ")");
             return;
         }
 
-        for (int i = 0; i < aimListeners.size(); i++) {
-            try {
-                ((AIMListener) aimListeners.get(i)).handleBuddyUnavailable(aimbud, message);
-            } catch (Exception e) {
-                e.printStackTrace();
+        dispatch(AIMEvent.BUDDY_UNAVAILABLE, new ListenerCall() {
+            public void call(AIMListener listener) {
+                listener.handleBuddyUnavailable(aimbud, message);
             }
-        }
+        });
     }
 
 
@@ -1079,9 +1910,6 @@ public class AIMClient implements Runnable, AIMSender {
             StringTokenizer inToken = new StringTokenizer(inString, ":");
             String command = inToken.nextToken();
             if (command.equals("IM_IN2")) {
-                // treat every message received as verification
-                this.connectionVerified = true;
-
                 String from = imNormalize(inToken.nextToken());
                 // whats this?
                 inToken.nextToken();
@@ -1094,11 +1922,6 @@ public class AIMClient implements Runnable, AIMSender {
 
                 String request = stripHTML(mesg);
 
-                if ((from.equalsIgnoreCase(this.name)) && (request.equals(AIMClient.PING))) {
-                    logger.info("AIM CONNECTION VERIFIED(" + new Date() + ").");
-                    return;
-                }
-
                 logger.info("*** AIM MESSAGE: " + from + " > " + request + " ***");
 
                 // CALL ALL LISTENERS HERE
@@ -1112,10 +1935,18 @@ public class AIMClient implements Runnable, AIMSender {
                     while (inToken.hasMoreTokens()) {
                         config = config + ":" + inToken.nextToken();
                     }
-                    processConfig(config);
+                    processConfig(config, true);
+                    saveConfigCache(config);
                     logger.info("*** AIM CONFIG RECEIVED ***");
                 } else {
-                    setPermitMode(PERMIT_ALL);
+                    if (cachedBuddies != null || restorePending) {
+                        // everything the cache listed is gone, or the last
+                        // session's state needs restoring
+                        processConfig("", true);
+                    } else {
+                        setPermitMode(PERMIT_ALL);
+                    }
+                    saveConfigCache("");
                     logger.info("*** AIM NO CONFIG RECEIVED ***");
                 }
                 return;
@@ -1140,33 +1971,52 @@ public class AIMClient implements Runnable, AIMSender {
 
             if (command.equals("UPDATE_BUDDY2")) {
                 String bname = imNormalize(inToken.nextToken());
+                if (probeReplyPending && bname.equals(this.name)) {
+                    probeReplyPending = false;
+                    connectionStats.probeAnswered(System.nanoTime() - probeSentNanos);
+                    logger.info("AIM CONNECTION VERIFIED(" + new Date() + ").");
+                    // still our real warning level, which frameSend charges by
+                    AIMBuddy self = getBuddy(bname);
+                    if (self != null) {
+                        inToken.nextToken();
+                        self.setWarningAmount(Integer.parseInt(inToken.nextToken()));
+                    }
+                    return;
+                }
                 AIMBuddy aimbud = getBuddy(bname);
                 if (aimbud == null) {
                 	aimbud = new AIMBuddy(bname);
                 }
                 String stat = inToken.nextToken();
-                if (stat.equals("T")) {
-                    generateBuddySignOn(bname, "INFO");
-                     logger.info("Buddy:" + bname + " just signed on.");
-                } else if (stat.equals("F")) {
-                    generateBuddySignOff(bname, "INFO");
-                    logger.info("Buddy:" + bname + " just signed off.");
-                }
                 int evilAmount = Integer.parseInt(inToken.nextToken());
                 aimbud.setWarningAmount(evilAmount);
-                if (stat.equals("T")) { // See whether user is available.
-                    String signOnTime = inToken.nextToken();
-
-                    // TODO: what is the format of this?
-                    // System.err.println(bname+" signon="+signOnTime);
-                    String idleTime = inToken.nextToken();
-                    // System.err.println(bname+"
-                    // idle="+Integer.valueOf(idleTime).intValue()+" mins");
-                    if (-1 != inToken.nextToken().indexOf('U')) {
+                if (stat.equals("T")) {
+                    // sign on time is seconds since the epoch, idle time is
+                    // in minutes
+                    int signOnTime = 0;
+                    int idleTime = 0;
+                    int userClass = 0;
+                    try {
+                        signOnTime = Integer.parseInt(inToken.nextToken().trim());
+                        idleTime = Integer.parseInt(inToken.nextToken().trim());
+                        userClass = AIMBuddy.parseUserClass(inToken.nextToken());
+                    } catch (RuntimeException e) {
+                        // the buddy is still on, whatever else is garbled
+                        logger.warning("Bad status fields for " + bname + ": " + e);
+                    }
+                    updateStatus(bname, aimbud, signOnTime, idleTime, userClass);
+                    generateBuddySignOn(bname, "INFO");
+                    logger.info("Buddy:" + bname + " just signed on.");
+                    // See whether user is available.
+                    if ((userClass & AIMBuddy.UC_UNAVAILABLE) != 0) {
                         generateBuddyUnavailable(bname, "INFO");
                     } else {
                         generateBuddyAvailable(bname, "INFO");
                     }
+                } else if (stat.equals("F")) {
+                    updateStatus(bname, aimbud, 0, 0, 0);
+                    generateBuddySignOff(bname, "INFO");
+                    logger.info("Buddy:" + bname + " just signed off.");
                 }
 
                 return;
@@ -1215,6 +2065,8 @@ public class AIMClient implements Runnable, AIMSender {
                 }
 
                 if (error.equals("980")) {
+                    // retrying will not help
+                    wantOnline = false;
                     generateError(error, "Invalid login information!");
                     logger.severe("Invalid login information");
                     return;
@@ -1247,9 +2099,19 @@ public class AIMClient implements Runnable, AIMSender {
      * 
      * @param config
      *            A properly formated TOC configuration.
+     * @param fromServer
+     *            false if the config was read from the local cache, in which
+     *            case nothing is sent to the server
      */
-    private void processConfig(String config) {
+    private void processConfig(String config, boolean fromServer) {
         int new_permit_mode = PERMIT_ALL;
+        int previousMode = permitMode;
+        Set seen = new HashSet();
+        if (fromServer && cachedBuddies != null) {
+            // the server's lists replace whatever the cache said
+            permitted.clear();
+            denied.clear();
+        }
         BufferedReader br = new BufferedReader(new StringReader(config),512);
         try {
             String current_group = DEFAULT_GROUP;
@@ -1258,6 +2120,9 @@ public class AIMClient implements Runnable, AIMSender {
                 if (line.equals("done")) {
                     break;
                 }
+                if (line.length() < 2) {
+                    continue;
+                }
                 char type = line.charAt(0);
                 
                 String arg = line.substring(2);
@@ -1276,15 +2141,17 @@ public class AIMClient implements Runnable, AIMSender {
                         }else{
                         	alias = arg;
                         }
+                        seen.add(imNormalize(arg));
                         buddy = (AIMBuddy) buddyHash.get(imNormalize(arg));
                         if (buddy == null) {
-                            buddy = new AIMBuddy(arg, current_group,alias);
-                            buddyHash.put(imNormalize(arg), buddy);
-                        } else {
+                            buddy = putBuddyIfAbsent(new AIMBuddy(arg, current_group, alias));
+                        }
+                        if (buddy != null) {
                             // they already exist, so just take the server's
                             // word
                             // for the group they belong in
                             buddy.setGroup(current_group);
+                            indexGroup(imNormalize(arg), current_group);
                         }
                         break;
                     case 'p' :
@@ -1300,14 +2167,146 @@ public class AIMClient implements Runnable, AIMSender {
             }
         } catch (IOException e) {
             logger.warning("Error reading configuration.");
-            signoff("2.25");
+            if (fromServer) {
+                signoff("2.25");
+            }
+            return;
+        }
+
+        if (!fromServer) {
+            cachedBuddies = seen;
+            permitMode = new_permit_mode;
+            logger.info("Generating ConfigReady Handlevent from cache");
+            generateConfigReady(buddyHash);
             return;
         }
+
+        if (cachedBuddies != null) {
+            // drop whatever the cache had that the server no longer does
+            cachedBuddies.removeAll(seen);
+            for (Iterator it = cachedBuddies.iterator(); it.hasNext();) {
+                removeBuddyEntry((String) it.next());
+            }
+            cachedBuddies = null;
+        }
         logger.warning("Generating ConfigReady Handlevent");
         generateConfigReady(buddyHash);
         // this will "readd" existing buddies, but thats ok
-        addBuddies(new ArrayList(buddyHash.values()));
-        setPermitMode(new_permit_mode);
+        sendBuddyList();
+        if (restorePending) {
+            restorePending = false;
+            restoreSessionState(previousMode);
+        } else {
+            setPermitMode(new_permit_mode);
+        }
+    }
+
+
+    /**
+     * After a reconnect, send the permit and deny lists, permit mode and away
+     * message the client had before the connection dropped
+     * 
+     * @param mode
+     *            the permit mode to go back to
+     */
+    private void restoreSessionState(int mode) {
+        logger.info("Restoring state from the previous session.");
+        if (!denied.isEmpty()) {
+            sendPermitDenyList("toc2_add_deny", new ArrayList(denied).iterator(), "7.75");
+        }
+        if (!permitted.isEmpty()) {
+            sendPermitDenyList("toc2_add_permit", new ArrayList(permitted).iterator(), "7.875");
+        }
+        setPermitMode(mode);
+        if (awayMessage.length() > 0) {
+            sendAway(awayMessage);
+        }
+    }
+
+
+    /**
+     * Sets the file the server's buddy config is cached in between sessions
+     * 
+     * @param file
+     *            the cache file, or null to stop caching
+     */
+    public void setConfigCache(File file) {
+        this.configCache = file;
+    }
+
+
+    /**
+     * Load the buddy list from the config cache so listeners can show it
+     * before signing on. Fires handleConfigReady, without sending anything
+     * to the server. Buddies the server's config no longer lists are removed
+     * again when it arrives.
+     * 
+     * @return true if a cached config was loaded
+     */
+    public boolean loadCachedConfig() {
+        if (configCache == null || !configCache.exists()) {
+            return false;
+        }
+        StringBuffer config = new StringBuffer();
+        Reader in = null;
+        try {
+            in = new InputStreamReader(new FileInputStream(configCache), "UTF-8");
+            char[] buf = new char[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                config.append(buf, 0, n);
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to read config cache " + configCache + ": " + e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // already read
+                }
+            }
+        }
+        processConfig(config.toString(), false);
+        return true;
+    }
+
+
+    /**
+     * Save the server's config for the next session's loadCachedConfig
+     * 
+     * @param config
+     */
+    private void saveConfigCache(String config) {
+        if (configCache == null) {
+            return;
+        }
+        File tmp = new File(configCache.getPath() + ".tmp");
+        Writer out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new OutputStreamWriter(fos, "UTF-8");
+            out.write(config);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            // replaces the old cache in one step; a crash leaves one or the other
+            if (!tmp.renameTo(configCache)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to write config cache " + configCache + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing more to do
+                }
+            }
+        }
     }
 
 
@@ -1366,6 +2365,7 @@ public class AIMClient implements Runnable, AIMSender {
      *            The reason explaining why the user is not avaiable.
      */
     private void sendAway(String reason) {
+        awayMessage = reason;
         final String work = "toc_set_away \"" + reason + "\"\0";
 
         try {
@@ -1383,6 +2383,15 @@ public class AIMClient implements Runnable, AIMSender {
      */
     private void signoff(String place) {
         online = false;
+        probeReplyPending = false;
+        connectionStats.signedOff();
+        synchronized (lifecycle) {
+            if (livenessCheck != null) {
+                livenessCheck.cancel();
+                livenessCheck = null;
+            }
+        }
+        clearPresence();
         logger.info("Trying to close IM (" + place + ").....");
         try {
             if (null != out) {
@@ -1429,6 +2438,46 @@ public class AIMClient implements Runnable, AIMSender {
     }
 
 
+    /**
+     * Add many buddies to the denied list, in as few frames as possible. The
+     * permit mode is left alone; set it once afterwards if needed.
+     * 
+     * @param buddyList
+     *            List of AIMBuddy
+     */
+    public void denyBuddies(List buddyList) {
+        List names = new ArrayList(buddyList.size());
+        for (Iterator iter = buddyList.iterator(); iter.hasNext();) {
+            String bname = imNormalize(((AIMBuddy) iter.next()).getName());
+            permitted.remove(bname);
+            denied.add(bname);
+            names.add(bname);
+        }
+        logger.info("Attempting to deny " + names.size() + " buddies.");
+        sendPermitDenyList("toc2_add_deny", names.iterator(), "7.75");
+    }
+
+
+    /**
+     * Add many buddies to the permitted list, in as few frames as possible.
+     * The permit mode is left alone; set it once afterwards if needed.
+     * 
+     * @param buddyList
+     *            List of AIMBuddy
+     */
+    public void permitBuddies(List buddyList) {
+        List names = new ArrayList(buddyList.size());
+        for (Iterator iter = buddyList.iterator(); iter.hasNext();) {
+            String bname = imNormalize(((AIMBuddy) iter.next()).getName());
+            denied.remove(bname);
+            permitted.add(bname);
+            names.add(bname);
+        }
+        logger.info("Attempting to permit " + names.size() + " buddies.");
+        sendPermitDenyList("toc2_add_permit", names.iterator(), "7.875");
+    }
+
+
     /**
      * Gets the permit mode that is set on the server.
      * 
@@ -1439,6 +2488,43 @@ public class AIMClient implements Runnable, AIMSender {
     }
 
 
+    /**
+     * Gets the names on the permitted list
+     * 
+     * @return a copy of the normalized names
+     */
+    Set getPermitted() {
+        return new HashSet(permitted);
+    }
+
+
+    /**
+     * Gets the names on the denied list
+     * 
+     * @return a copy of the normalized names
+     */
+    Set getDenied() {
+        return new HashSet(denied);
+    }
+
+
+    /**
+     * Replace the local permit and deny state without telling the server.
+     * Used to restore saved state; the server's config wins once signed on.
+     * 
+     * @param mode
+     * @param permittedNames
+     *            normalized names to permit
+     * @param deniedNames
+     *            normalized names to deny
+     */
+    void restorePermitDeny(int mode, Collection permittedNames, Collection deniedNames) {
+        permitted = new HashSet(permittedNames);
+        denied = new HashSet(deniedNames);
+        permitMode = mode;
+    }
+
+
     /**
      * Sets the permit mode on the server. (Use constants from AIMSender)
      * 
@@ -1486,57 +2572,16 @@ public class AIMClient implements Runnable, AIMSender {
 
 
     /**
-     * Try to verify our connections by messaging ourselves. Takes 2 instances
-     * to check. One to send the message (sender=true), One to check the result
-     * (sender=false)
-     * 
-     * @author Scott Oster
-     * @created February 28, 2002
+     * Buddy names as of one version of the buddy list
      */
-    static class AimConnectionCheck extends TimerTask {
-        AIMClient aim;
-        private boolean sender;
-
-
-        /**
-         * Constructor for the AimConnectionCheck object
-         * 
-         * @param aim
-         *            handle to aim
-         * @param sender
-         *            which instance it is
-         */
-        public AimConnectionCheck(AIMClient aim, boolean sender) {
-            this.aim = aim;
-            this.sender = sender;
-        }
+    private static class NameSnapshot {
+        final int version;
+        final String[] names;
 
 
-        /**
-         * Main processing method for the AimConnectionCheck object
-         */
-        public void run() {
-            try {
-                if (sender) {
-                    aim.connectionVerified = false;
-                    // only message if we are online (when we get reconnected
-                    // online will be true)
-                    if (aim.online) {
-                        aim.sendMesg(aim.name, AIMClient.PING);
-                    }
-                } else {
-                    // need to see if we got a response
-                    if (!aim.connectionVerified) {
-                        // restart the connection if we didnt see the message
-                        logger.info("*** AIM -- CONNECTION PROBLEM(" + new Date() + "): Connection was not verified!");
-                        logger.info("****** Assuming it was dropped, issuing restart.");
-                        aim.signoff("Connection Dropped!");
-                        new Thread(aim).start();
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        NameSnapshot(int version, String[] names) {
+            this.version = version;
+            this.names = names;
         }
     }
-}
\ No newline at end of file
+}
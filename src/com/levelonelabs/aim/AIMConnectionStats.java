@@ -0,0 +1,186 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+
+/**
+ * Health figures for one client's connection: the round trip time of each
+ * liveness probe, probes that went unanswered, keepalives sent, and how
+ * often the client has signed on and reconnected. A rising RTT or a
+ * growing missed count shows a link going bad before it drops messages.
+ *
+ * @see AIMClient#getConnectionStats()
+ */
+public class AIMConnectionStats {
+    private final AIMLatencyHistogram rtt = new AIMLatencyHistogram();
+    private long probes;
+    private long missed;
+    private long keepalives;
+    private long signOns;
+    private long reconnects;
+    private long lastRttNanos = -1;
+    private long connectedSince;
+
+
+    synchronized void probeSent() {
+        probes++;
+    }
+
+
+    void probeAnswered(long nanos) {
+        rtt.record(nanos);
+        synchronized (this) {
+            lastRttNanos = nanos;
+        }
+    }
+
+
+    synchronized void probeMissed() {
+        missed++;
+    }
+
+
+    synchronized void keepaliveSent() {
+        keepalives++;
+    }
+
+
+    synchronized void signedOn() {
+        signOns++;
+        connectedSince = System.currentTimeMillis();
+    }
+
+
+    synchronized void signedOff() {
+        connectedSince = 0;
+    }
+
+
+    synchronized void reconnecting() {
+        reconnects++;
+    }
+
+
+    /**
+     * Gets the round trip times of the answered probes
+     *
+     * @return the histogram
+     */
+    public AIMLatencyHistogram getRttHistogram() {
+        return rtt;
+    }
+
+
+    /**
+     * Gets the round trip time of the last answered probe
+     *
+     * @return microseconds, or -1 if no probe was answered yet
+     */
+    public synchronized long getLastRttMicros() {
+        return lastRttNanos < 0 ? -1 : lastRttNanos / 1000;
+    }
+
+
+    /**
+     * Gets how many liveness probes were sent
+     *
+     * @return the count
+     */
+    public synchronized long getProbeCount() {
+        return probes;
+    }
+
+
+    /**
+     * Gets how many liveness probes were not answered in time. Each one cost
+     * a connection.
+     *
+     * @return the count
+     */
+    public synchronized long getMissedCount() {
+        return missed;
+    }
+
+
+    /**
+     * Gets how many FLAP keepalives were sent
+     *
+     * @return the count
+     */
+    public synchronized long getKeepaliveCount() {
+        return keepalives;
+    }
+
+
+    /**
+     * Gets how many times the client signed on
+     *
+     * @return the count
+     */
+    public synchronized long getSignOnCount() {
+        return signOns;
+    }
+
+
+    /**
+     * Gets how many reconnects were attempted after a dropped or failed
+     * connection
+     *
+     * @return the count
+     */
+    public synchronized long getReconnectCount() {
+        return reconnects;
+    }
+
+
+    /**
+     * Gets when the current connection signed on
+     *
+     * @return milliseconds since the epoch, 0 if not signed on
+     */
+    public synchronized long getConnectedSince() {
+        return connectedSince;
+    }
+
+
+    /**
+     * Summarize the connection's health
+     *
+     * @return counts and the RTT histogram summary
+     */
+    public synchronized String toString() {
+        return "signons=" + signOns + " reconnects=" + reconnects + " probes=" + probes + " missed=" + missed
+            + " keepalives=" + keepalives + " rtt[" + rtt + "]";
+    }
+}
@@ -0,0 +1,183 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+
+/**
+ * A single session event, as delivered through an AIMEventPublisher. Mirrors
+ * the callbacks of AIMListener.
+ *
+ * @see AIMEventPublisher
+ */
+public class AIMEvent {
+    public static final int CONNECTED = 1;
+    public static final int DISCONNECTED = 2;
+    public static final int CONFIG_READY = 3;
+    public static final int MESSAGE = 4;
+    public static final int WARNING = 5;
+    public static final int BUDDY_SIGN_ON = 6;
+    public static final int BUDDY_SIGN_OFF = 7;
+    public static final int BUDDY_AVAILABLE = 8;
+    public static final int BUDDY_UNAVAILABLE = 9;
+    public static final int ERROR = 10;
+
+    private static final String[] TYPE_NAMES = {"UNKNOWN", "CONNECTED", "DISCONNECTED", "CONFIG_READY", "MESSAGE",
+        "WARNING", "BUDDY_SIGN_ON", "BUDDY_SIGN_OFF", "BUDDY_AVAILABLE", "BUDDY_UNAVAILABLE", "ERROR"};
+
+    private final int type;
+    private final AIMBuddy buddy;
+    private final String text;
+    private final String error;
+    private final int amount;
+    private final long timestamp;
+
+
+    /**
+     * Constructor for the AIMEvent object
+     *
+     * @param type
+     *            one of the event type constants
+     * @param buddy
+     *            the buddy the event is about, or null
+     * @param text
+     *            message, info or error description, or null
+     * @param error
+     *            error code for ERROR events, or null
+     * @param amount
+     *            warning amount for WARNING events
+     */
+    public AIMEvent(int type, AIMBuddy buddy, String text, String error, int amount) {
+        this.type = type;
+        this.buddy = buddy;
+        this.text = text;
+        this.error = error;
+        this.amount = amount;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Gets the type of the event
+     *
+     * @return one of the event type constants
+     */
+    public int getType() {
+        return type;
+    }
+
+
+    /**
+     * Gets the name of an event type
+     *
+     * @param type
+     *            one of the event type constants
+     * @return the constant's name
+     */
+    public static String typeName(int type) {
+        if (type < 0 || type >= TYPE_NAMES.length) {
+            return TYPE_NAMES[0];
+        }
+        return TYPE_NAMES[type];
+    }
+
+
+    /**
+     * Gets the buddy the event is about
+     *
+     * @return the buddy, or null for session level events
+     */
+    public AIMBuddy getBuddy() {
+        return buddy;
+    }
+
+
+    /**
+     * Gets the text of the event: the message for MESSAGE, the info for
+     * presence events and the description for ERROR.
+     *
+     * @return the text, or null
+     */
+    public String getText() {
+        return text;
+    }
+
+
+    /**
+     * Gets the error code of an ERROR event
+     *
+     * @return the error code, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+
+    /**
+     * Gets the warning amount of a WARNING event
+     *
+     * @return the warning amount
+     */
+    public int getAmount() {
+        return amount;
+    }
+
+
+    /**
+     * Gets the time the event was generated
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+
+    /**
+     * Describe the event
+     *
+     * @return the event type and subject
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer("AIMEvent[");
+        sb.append(typeName(type));
+        if (buddy != null) {
+            sb.append(" ").append(buddy.getName());
+        }
+        if (text != null) {
+            sb.append(" ").append(text);
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,360 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+
+/**
+ * Publishes the events of an AIMClient to subscribers that pull them at their
+ * own pace. Each subscriber gets a bounded buffer; events arriving while the
+ * buffer is full are dropped (and counted) rather than blocking the reader
+ * thread.
+ *
+ * @see AIMClient#subscribe(AIMEventSubscriber)
+ */
+public class AIMEventPublisher implements AIMListener {
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    static Logger logger = Logger.getLogger(AIMEventPublisher.class.getName());
+
+    private final int bufferSize;
+    private final List subscriptions = new ArrayList();
+    private boolean closed = false;
+
+
+    /**
+     * Constructor for the AIMEventPublisher object
+     */
+    public AIMEventPublisher() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+
+    /**
+     * Constructor for the AIMEventPublisher object
+     *
+     * @param bufferSize
+     *            the most events held for a subscriber that has not requested
+     *            them yet
+     */
+    public AIMEventPublisher(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+
+    /**
+     * Add a subscriber. onSubscribe is called before this returns.
+     *
+     * @param subscriber
+     */
+    public void subscribe(AIMEventSubscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        Subscription sub = new Subscription(subscriber);
+        boolean alreadyClosed;
+        synchronized (subscriptions) {
+            alreadyClosed = closed;
+            if (!alreadyClosed) {
+                subscriptions.add(sub);
+            }
+        }
+        subscriber.onSubscribe(sub);
+        if (alreadyClosed) {
+            sub.complete();
+        }
+    }
+
+
+    /**
+     * Complete every subscription once its buffered events are delivered. No
+     * further events are published.
+     */
+    public void close() {
+        Subscription[] subs;
+        synchronized (subscriptions) {
+            closed = true;
+            subs = snapshot();
+            subscriptions.clear();
+        }
+        for (int i = 0; i < subs.length; i++) {
+            subs[i].complete();
+        }
+    }
+
+
+    /**
+     * Total number of events dropped because a subscriber's buffer was full
+     *
+     * @return the dropped count across all current subscribers
+     */
+    public long getDroppedCount() {
+        Subscription[] subs;
+        synchronized (subscriptions) {
+            subs = snapshot();
+        }
+        long total = 0;
+        for (int i = 0; i < subs.length; i++) {
+            total += subs[i].getDropped();
+        }
+        return total;
+    }
+
+
+    private Subscription[] snapshot() {
+        return (Subscription[]) subscriptions.toArray(new Subscription[subscriptions.size()]);
+    }
+
+
+    private void publish(AIMEvent event) {
+        Subscription[] subs;
+        synchronized (subscriptions) {
+            if (closed) {
+                return;
+            }
+            subs = snapshot();
+        }
+        for (int i = 0; i < subs.length; i++) {
+            subs[i].offer(event);
+        }
+    }
+
+
+    private void remove(Subscription sub) {
+        synchronized (subscriptions) {
+            subscriptions.remove(sub);
+        }
+    }
+
+
+    public void handleConnected() {
+        publish(new AIMEvent(AIMEvent.CONNECTED, null, null, null, 0));
+    }
+
+
+    public void handleDisconnected() {
+        publish(new AIMEvent(AIMEvent.DISCONNECTED, null, null, null, 0));
+    }
+
+
+    public void handleConfigReady(Map<String, AIMBuddy> m) {
+        publish(new AIMEvent(AIMEvent.CONFIG_READY, null, null, null, m.size()));
+    }
+
+
+    public void handleMessage(AIMBuddy buddy, String request) {
+        publish(new AIMEvent(AIMEvent.MESSAGE, buddy, request, null, 0));
+    }
+
+
+    public void handleWarning(AIMBuddy buddy, int amount) {
+        publish(new AIMEvent(AIMEvent.WARNING, buddy, null, null, amount));
+    }
+
+
+    public void handleBuddySignOn(AIMBuddy buddy, String info) {
+        publish(new AIMEvent(AIMEvent.BUDDY_SIGN_ON, buddy, info, null, 0));
+    }
+
+
+    public void handleBuddySignOff(AIMBuddy buddy, String info) {
+        publish(new AIMEvent(AIMEvent.BUDDY_SIGN_OFF, buddy, info, null, 0));
+    }
+
+
+    public void handleError(String error, String message) {
+        publish(new AIMEvent(AIMEvent.ERROR, null, message, error, 0));
+    }
+
+
+    public void handleBuddyUnavailable(AIMBuddy aimbud, String message) {
+        publish(new AIMEvent(AIMEvent.BUDDY_UNAVAILABLE, aimbud, message, null, 0));
+    }
+
+
+    public void handleBuddyAvailable(AIMBuddy aimbud, String message) {
+        publish(new AIMEvent(AIMEvent.BUDDY_AVAILABLE, aimbud, message, null, 0));
+    }
+
+
+    /**
+     * Per subscriber buffer and demand. Delivery happens on whichever thread
+     * offers an event or requests more, but only one thread delivers at a
+     * time so the subscriber is never called concurrently.
+     */
+    private class Subscription implements AIMSubscription {
+        private final AIMEventSubscriber subscriber;
+        private final LinkedList buffer = new LinkedList();
+        private long demand = 0;
+        private long dropped = 0;
+        // a bad request, reported by the drain so it can't overlap an event
+        private Throwable failure = null;
+        private boolean cancelled = false;
+        private boolean completing = false;
+        private boolean draining = false;
+
+
+        Subscription(AIMEventSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (failure == null) {
+                        failure = new IllegalArgumentException("non-positive request: " + n);
+                    }
+                    buffer.clear();
+                }
+                drain();
+                return;
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                demand += n;
+                if (demand < 0) {
+                    // overflowed, treat as unbounded
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+        }
+
+
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+            }
+            remove(this);
+        }
+
+
+        synchronized long getDropped() {
+            return dropped;
+        }
+
+
+        void offer(AIMEvent event) {
+            synchronized (this) {
+                if (cancelled || completing) {
+                    return;
+                }
+                if (buffer.size() >= bufferSize) {
+                    dropped++;
+                    if (dropped == 1 || dropped % bufferSize == 0) {
+                        logger.warning("Subscriber " + subscriber + " is behind, dropped " + dropped + " events");
+                    }
+                    return;
+                }
+                buffer.add(event);
+            }
+            drain();
+        }
+
+
+        void complete() {
+            synchronized (this) {
+                completing = true;
+            }
+            drain();
+        }
+
+
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                AIMEvent event = null;
+                Throwable error = null;
+                synchronized (this) {
+                    if (cancelled) {
+                        draining = false;
+                        return;
+                    }
+                    if (failure != null) {
+                        // stays draining: nothing is delivered after this
+                        error = failure;
+                        cancelled = true;
+                        buffer.clear();
+                    } else if (buffer.isEmpty() && completing) {
+                        cancelled = true;
+                        draining = false;
+                        break;
+                    } else if (buffer.isEmpty() || demand == 0) {
+                        draining = false;
+                        return;
+                    } else {
+                        event = (AIMEvent) buffer.removeFirst();
+                        if (demand != Long.MAX_VALUE) {
+                            demand--;
+                        }
+                    }
+                }
+                if (error != null) {
+                    remove(this);
+                    subscriber.onError(error);
+                    return;
+                }
+                try {
+                    subscriber.onEvent(event);
+                } catch (RuntimeException e) {
+                    logger.severe("Subscriber " + subscriber + " failed on " + event + ": " + e);
+                    cancel();
+                    subscriber.onError(e);
+                    return;
+                }
+            }
+            subscriber.onComplete();
+        }
+    }
+}
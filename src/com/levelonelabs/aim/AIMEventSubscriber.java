@@ -0,0 +1,73 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+
+/**
+ * Receives session events from an AIMEventPublisher at the rate it requests
+ * them through its AIMSubscription.
+ */
+public interface AIMEventSubscriber {
+    /**
+     * Called once, before any other method, when the subscription is set up.
+     * No events are delivered until request is called on it.
+     *
+     * @param subscription
+     */
+    public void onSubscribe(AIMSubscription subscription);
+
+
+    /**
+     * Called for each event, never more often than requested and never
+     * concurrently.
+     *
+     * @param event
+     */
+    public void onEvent(AIMEvent event);
+
+
+    /**
+     * Called when the subscription fails. No further calls follow.
+     *
+     * @param t
+     */
+    public void onError(Throwable t);
+
+
+    /**
+     * Called when the publisher is closed and every buffered event has been
+     * delivered. No further calls follow.
+     */
+    public void onComplete();
+}
@@ -36,11 +36,11 @@ package com.levelonelabs.aim;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.Node;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.LinkedHashSet;
 
 
 /**
@@ -51,7 +51,8 @@ import java.util.ListIterator;
  * @created May 28, 2002
  */
 public class AIMGroup implements XMLizable {
-    private ArrayList buddies=new ArrayList();
+    // insertion ordered, with constant time add/remove/contains
+    private LinkedHashSet buddies=new LinkedHashSet();
     private String name;
 
     /**
@@ -76,12 +77,32 @@ public class AIMGroup implements XMLizable {
     /**
      * Gets the list attribute of the AIMGroup object
      *
-     * @return The list value
-     *
-     * @todo Need to make a real enumer or deep clone, to lazy right now
+     * @return a copy of the buddies in the group, in the order they were added
      */
     public ArrayList getList() {
-        return this.buddies;
+        return new ArrayList(this.buddies);
+    }
+
+
+    /**
+     * Iterate the buddies in the group, in the order they were added
+     *
+     * @return iterator of buddy names
+     */
+    public Iterator iterator() {
+        return this.buddies.iterator();
+    }
+
+
+    /**
+     * Is the buddy part of the group
+     *
+     * @param buddy
+     *
+     * @return true if the buddy is in the group
+     */
+    public boolean contains(String buddy) {
+        return this.buddies.contains(buddy);
     }
 
 
@@ -93,10 +114,7 @@ public class AIMGroup implements XMLizable {
      * @return true if the buddy wasnt already part of the list
      */
     public boolean add(String buddy) {
-        if(!this.buddies.contains(buddy)) {
-            return this.buddies.add(buddy);
-        }
-        return false;
+        return this.buddies.add(buddy);
     }
 
 
@@ -108,11 +126,7 @@ public class AIMGroup implements XMLizable {
      * @return true if the buddy was part of the list and removed
      */
     public boolean remove(String buddy) {
-        if(this.buddies.contains(buddy)) {
-            this.buddies.remove(this.buddies.indexOf(buddy));
-            return true;
-        }
-        return false;
+        return this.buddies.remove(buddy);
     }
 
 
@@ -133,7 +147,7 @@ public class AIMGroup implements XMLizable {
      */
     public String toString() {
         StringBuffer sb=new StringBuffer();
-        for(ListIterator it=this.buddies.listIterator(); it.hasNext();) {
+        for(Iterator it=this.buddies.iterator(); it.hasNext();) {
             sb.append(it.next()+" ");
         }
         return sb.toString();
@@ -144,12 +158,11 @@ public class AIMGroup implements XMLizable {
      * @see com.levelonelabs.aim.XMLizable#readState(Element)
      */
     public void readState(Element fullStateElement) {
-        buddies=new ArrayList();
-        NodeList list=fullStateElement.getElementsByTagName("buddy");
-        for(int i=0; i < list.getLength(); i++) {
-            Element buddyElem=(Element) list.item(i);
-            String name=buddyElem.getAttribute("name");
-            add(name);
+        buddies=new LinkedHashSet();
+        for(Node child=fullStateElement.getFirstChild(); child != null; child=child.getNextSibling()) {
+            if(child.getNodeType() == Node.ELEMENT_NODE && ((Element) child).getTagName().equals("buddy")) {
+                add(((Element) child).getAttribute("name"));
+            }
         }
     }
 
@@ -161,7 +174,7 @@ public class AIMGroup implements XMLizable {
         Document doc=emptyStateElement.getOwnerDocument();
         emptyStateElement.setAttribute("name", this.getName());
 
-        Iterator buds=buddies.listIterator();
+        Iterator buds=buddies.iterator();
         while(buds.hasNext()) {
             String bud=(String) buds.next();
             Element budElem=doc.createElement("buddy");
@@ -0,0 +1,152 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+
+/**
+ * Fixed size latency histogram with power of two buckets, in microseconds.
+ * Bucket i counts samples below 2^i microseconds; the last bucket takes
+ * everything longer.
+ */
+public class AIMLatencyHistogram {
+    public static final int BUCKETS = 32;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long totalMicros;
+    private long maxMicros;
+
+
+    /**
+     * Record one sample
+     *
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[bucketFor(micros)]++;
+        count++;
+        totalMicros += micros;
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+
+    private static int bucketFor(long micros) {
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && micros >= (1L << bucket)) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+
+    /**
+     * Gets the number of samples
+     *
+     * @return the count
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+
+    /**
+     * Gets the mean latency
+     *
+     * @return the mean in microseconds, or 0 with no samples
+     */
+    public synchronized long getMeanMicros() {
+        return count == 0 ? 0 : totalMicros / count;
+    }
+
+
+    /**
+     * Gets the longest latency seen
+     *
+     * @return the maximum in microseconds
+     */
+    public synchronized long getMaxMicros() {
+        return maxMicros;
+    }
+
+
+    /**
+     * Gets an upper bound for a percentile of the samples
+     *
+     * @param percentile
+     *            between 0 and 100
+     * @return the upper edge of the bucket holding the percentile, in
+     *         microseconds
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += buckets[i];
+            if (seen >= wanted) {
+                return Math.min(1L << i, maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+
+    /**
+     * Gets a copy of the bucket counts
+     *
+     * @return BUCKETS counts, bucket i holding samples below 2^i microseconds
+     */
+    public synchronized long[] getBuckets() {
+        long[] copy = new long[BUCKETS];
+        System.arraycopy(buckets, 0, copy, 0, BUCKETS);
+        return copy;
+    }
+
+
+    /**
+     * Summarize the histogram
+     *
+     * @return count, mean, 99th percentile and max
+     */
+    public synchronized String toString() {
+        return "n=" + count + " mean=" + getMeanMicros() + "us p99<=" + getPercentileMicros(99) + "us max="
+            + maxMicros + "us";
+    }
+}
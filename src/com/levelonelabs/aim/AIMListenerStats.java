@@ -0,0 +1,242 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Latency and failure statistics for the AIMListeners of one client, kept per
+ * listener and per event type (the AIMEvent type constants). Calls that take
+ * longer than the budget are logged with the listener that made them.
+ *
+ * @see AIMClient#getListenerStats()
+ */
+public class AIMListenerStats {
+    public static final long DEFAULT_BUDGET_MILLIS = 250;
+
+    static Logger logger = Logger.getLogger(AIMListenerStats.class.getName());
+
+    private final Map listeners = new IdentityHashMap();
+    private volatile long budgetNanos = DEFAULT_BUDGET_MILLIS * 1000000L;
+
+
+    /**
+     * Sets how long a single listener call may take before it is reported
+     *
+     * @param millis
+     */
+    public void setBudget(long millis) {
+        budgetNanos = millis * 1000000L;
+    }
+
+
+    /**
+     * Gets how long a single listener call may take before it is reported
+     *
+     * @return the budget in milliseconds
+     */
+    public long getBudget() {
+        return budgetNanos / 1000000L;
+    }
+
+
+    /**
+     * Start keeping statistics for a listener that was registered
+     *
+     * @param listener
+     */
+    synchronized void added(AIMListener listener) {
+        if (!listeners.containsKey(listener)) {
+            listeners.put(listener, new Entry());
+        }
+    }
+
+
+    /**
+     * Drop the statistics of a listener that was removed, so it can be
+     * collected. Calls still in flight to it are not recorded.
+     *
+     * @param listener
+     */
+    synchronized void removed(AIMListener listener) {
+        listeners.remove(listener);
+    }
+
+
+    private synchronized Entry entryFor(AIMListener listener) {
+        return (Entry) listeners.get(listener);
+    }
+
+
+    /**
+     * Record one listener call
+     *
+     * @param listener
+     * @param type
+     *            AIMEvent type constant of the call
+     * @param nanos
+     *            how long the call took
+     */
+    void record(AIMListener listener, int type, long nanos) {
+        Entry entry = entryFor(listener);
+        if (entry == null) {
+            return;
+        }
+        entry.histograms[type].record(nanos);
+        if (nanos > budgetNanos) {
+            synchronized (entry) {
+                entry.slow++;
+            }
+            logger.warning("Listener " + listener + " took " + (nanos / 1000000L) + "ms handling "
+                + AIMEvent.typeName(type) + " (budget " + getBudget() + "ms)");
+        }
+    }
+
+
+    /**
+     * Record a listener call that threw
+     *
+     * @param listener
+     * @param type
+     *            AIMEvent type constant of the call
+     * @param e
+     *            what it threw
+     */
+    void failed(AIMListener listener, int type, Exception e) {
+        Entry entry = entryFor(listener);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.failures++;
+            }
+        }
+        logger.log(Level.SEVERE, "Listener " + listener + " failed handling " + AIMEvent.typeName(type), e);
+    }
+
+
+    /**
+     * Gets the latencies of one listener for one event type
+     *
+     * @param listener
+     * @param type
+     *            AIMEvent type constant
+     * @return the histogram, or null if the listener is not registered
+     */
+    public AIMLatencyHistogram getHistogram(AIMListener listener, int type) {
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry) listeners.get(listener);
+        }
+        return entry == null ? null : entry.histograms[type];
+    }
+
+
+    /**
+     * Gets how many calls to a listener went over budget
+     *
+     * @param listener
+     * @return the number of slow calls
+     */
+    public long getSlowCount(AIMListener listener) {
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry) listeners.get(listener);
+        }
+        if (entry == null) {
+            return 0;
+        }
+        synchronized (entry) {
+            return entry.slow;
+        }
+    }
+
+
+    /**
+     * Gets how many calls to a listener threw an exception
+     *
+     * @param listener
+     * @return the number of failed calls
+     */
+    public long getFailureCount(AIMListener listener) {
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry) listeners.get(listener);
+        }
+        if (entry == null) {
+            return 0;
+        }
+        synchronized (entry) {
+            return entry.failures;
+        }
+    }
+
+
+    /**
+     * One line per listener and event type that has been called
+     *
+     * @return a report of all recorded latencies
+     */
+    public synchronized String toString() {
+        StringBuffer sb = new StringBuffer();
+        for (Iterator it = listeners.entrySet().iterator(); it.hasNext();) {
+            Map.Entry e = (Map.Entry) it.next();
+            Entry entry = (Entry) e.getValue();
+            for (int type = 1; type < entry.histograms.length; type++) {
+                if (entry.histograms[type].getCount() > 0) {
+                    sb.append(e.getKey()).append(" ").append(AIMEvent.typeName(type)).append(": ");
+                    sb.append(entry.histograms[type]).append("\n");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private static class Entry {
+        final AIMLatencyHistogram[] histograms = new AIMLatencyHistogram[AIMEvent.ERROR + 1];
+        long slow;
+        long failures;
+
+
+        Entry() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new AIMLatencyHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Store and forward queue for buddies that are offline. Each buddy gets an
+ * append-only file of queued messages, so the queue survives restarts and
+ * does not sit in the heap. Only a message and byte count per buddy is kept
+ * in memory. When a buddy signs on the queue is sent, packed into as few IMs
+ * as possible so the flush costs few rate limit points. The file is moved
+ * aside while it is sent and only removed once every message went out;
+ * whatever was not sent is kept for the next flush.
+ *
+ * Register it with AIMSender.addAIMListener for the automatic flush. That
+ * flush runs on a thread of the outbox's own, not the reader thread that
+ * delivers the sign on, so a long queue does not hold up reading.
+ */
+public class AIMOutbox extends AIMAdapter {
+    public static final int DEFAULT_MAX_MESSAGES = 100;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    // sendMesg cuts IMs at 1024 characters, leave room for the separators
+    private static final int MAX_IM_LENGTH = 1000;
+    private static final String SEPARATOR = "<BR>";
+
+    static Logger logger = Logger.getLogger(AIMOutbox.class.getName());
+
+    private final AIMSender aim;
+    private final File dir;
+    private final int maxMessages;
+    private final int maxBytes;
+
+    // normalized name -> int[] {messages, bytes} of the buddy's file
+    private final Map sizes = new HashMap();
+
+    // normalized names with a flush in progress
+    private final Set flushing = new HashSet();
+
+    // runs the flushes started by a sign on
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "aim-outbox");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+
+    /**
+     * Constructor for the AIMOutbox object, with the default limits
+     *
+     * @param aim
+     *            the connection to flush through
+     * @param dir
+     *            directory for the queue files, created if missing
+     */
+    public AIMOutbox(AIMSender aim, File dir) {
+        this(aim, dir, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+
+
+    /**
+     * Constructor for the AIMOutbox object
+     *
+     * @param aim
+     *            the connection to flush through
+     * @param dir
+     *            directory for the queue files, created if missing
+     * @param maxMessages
+     *            most messages queued for one buddy
+     * @param maxBytes
+     *            largest queue file for one buddy
+     */
+    public AIMOutbox(AIMSender aim, File dir, int maxMessages, int maxBytes) {
+        this.aim = aim;
+        this.dir = dir;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.severe("Unable to create outbox directory " + dir);
+        }
+    }
+
+
+    /**
+     * Queue a message for a buddy
+     *
+     * @param buddy
+     * @param message
+     * @return false if the buddy's queue is full or could not be written
+     */
+    public synchronized boolean queue(AIMBuddy buddy, String message) {
+        String bname = AIMClient.imNormalize(buddy.getName());
+        int[] size = sizeOf(bname);
+        // writeUTF adds a two byte length; count chars as an upper bound
+        int recordBytes = 2 + message.length() * 3;
+        if (size[0] >= maxMessages || size[1] + recordBytes > maxBytes) {
+            logger.info("Outbox for " + bname + " is full, dropping message");
+            return false;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileFor(bname), true)));
+            out.writeUTF(message);
+            out.flush();
+            size[0]++;
+            size[1] = (int) fileFor(bname).length();
+            return true;
+        } catch (IOException e) {
+            logger.severe("Unable to queue message for " + bname + ": " + e);
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+
+    /**
+     * Number of messages queued for a buddy, not counting any left over from
+     * a flush that was cut short
+     *
+     * @param buddy
+     * @return the number of queued messages
+     */
+    public synchronized int size(AIMBuddy buddy) {
+        return sizeOf(AIMClient.imNormalize(buddy.getName()))[0];
+    }
+
+
+    /**
+     * Send everything queued for a buddy and empty the queue. Messages that
+     * could not be sent, because the buddy or the connection went away, stay
+     * queued.
+     *
+     * @param buddy
+     */
+    public void flush(AIMBuddy buddy) {
+        String bname = AIMClient.imNormalize(buddy.getName());
+        File sending = sendingFileFor(bname);
+        List messages;
+        synchronized (this) {
+            if (flushing.contains(bname)) {
+                return;
+            }
+            // a .sending file left by an unfinished flush goes out first
+            if (!sending.exists()) {
+                if (sizeOf(bname)[0] == 0) {
+                    return;
+                }
+                // move the queue aside; messages queued from now on start a
+                // new file
+                if (!fileFor(bname).renameTo(sending)) {
+                    logger.warning("Unable to move aside outbox file for " + bname);
+                    return;
+                }
+                sizes.remove(bname);
+            }
+            messages = read(sending);
+            flushing.add(bname);
+        }
+
+        boolean more = false;
+        try {
+            int sent = send(buddy, messages);
+            if (sent < messages.size()) {
+                logger.info("Flush to " + bname + " stopped after " + sent + " of " + messages.size() + " messages");
+                rewrite(sending, messages.subList(sent, messages.size()));
+                return;
+            }
+            if (!sending.delete()) {
+                logger.warning("Unable to remove outbox file for " + bname);
+                return;
+            }
+            synchronized (this) {
+                more = sizeOf(bname)[0] > 0;
+            }
+        } finally {
+            synchronized (this) {
+                flushing.remove(bname);
+            }
+        }
+        if (more) {
+            // queued while the old file was going out
+            flush(buddy);
+        }
+    }
+
+
+    /**
+     * Send messages packed into as few IMs as will hold them. One message too
+     * long for an IM goes out in pieces of its own.
+     *
+     * @return how many messages, from the start of the list, were sent
+     */
+    private int send(AIMBuddy buddy, List messages) {
+        StringBuffer im = new StringBuffer();
+        int sent = 0;
+        int packed = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            String message = (String) messages.get(i);
+            if (im.length() > 0 && im.length() + message.length() + SEPARATOR.length() > MAX_IM_LENGTH) {
+                if (!sendIM(buddy, im.toString())) {
+                    return sent;
+                }
+                sent += packed;
+                packed = 0;
+                im.setLength(0);
+            }
+            if (message.length() > MAX_IM_LENGTH) {
+                // a failure part way resends the whole message next time
+                int start = 0;
+                while (start < message.length()) {
+                    int end = Math.min(message.length(), start + MAX_IM_LENGTH);
+                    if (end < message.length() && Character.isHighSurrogate(message.charAt(end - 1))) {
+                        end--;
+                    }
+                    if (!sendIM(buddy, message.substring(start, end))) {
+                        return sent;
+                    }
+                    start = end;
+                }
+                sent++;
+                continue;
+            }
+            im.append(message).append(SEPARATOR);
+            packed++;
+        }
+        if (im.length() > 0 && sendIM(buddy, im.toString())) {
+            sent += packed;
+        }
+        return sent;
+    }
+
+
+    /**
+     * Send one IM if the buddy is still there to get it
+     *
+     * @return false if it could not be sent
+     */
+    private boolean sendIM(AIMBuddy buddy, String text) {
+        if (!buddy.isOnline() || buddy.isBanned()) {
+            return false;
+        }
+        aim.sendMessage(buddy, text);
+        // a failed write signs off, which takes every buddy offline
+        return buddy.isOnline();
+    }
+
+
+    /**
+     * Replace a queue file with the given messages
+     */
+    private void rewrite(File file, List messages) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            for (int i = 0; i < messages.size(); i++) {
+                out.writeUTF((String) messages.get(i));
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                logger.severe("Unable to replace " + file + ", it will be resent whole");
+            }
+        } catch (IOException e) {
+            logger.severe("Unable to rewrite " + file + ", it will be resent whole: " + e);
+        } finally {
+            close(out);
+            tmp.delete();
+        }
+    }
+
+
+    /**
+     * Stop the flush thread after the flushes already started are done
+     *
+     * @param timeoutMillis
+     *            how long to wait for them
+     * @return true if they finished in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        flusher.shutdown();
+        try {
+            return flusher.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    /**
+     * Forward any queued messages when a buddy signs on. The flush is handed
+     * to the outbox thread.
+     */
+    public void handleBuddySignOn(final AIMBuddy buddy, String info) {
+        try {
+            flusher.execute(new Runnable() {
+                public void run() {
+                    flush(buddy);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Outbox is shut down, not flushing to " + buddy.getName());
+        }
+    }
+
+
+    private File fileFor(String bname) {
+        try {
+            return new File(dir, URLEncoder.encode(bname, "UTF-8") + ".outbox");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+
+    private File sendingFileFor(String bname) {
+        File file = fileFor(bname);
+        return new File(file.getPath() + ".sending");
+    }
+
+
+    /**
+     * Look up, or count from disk the first time, the size of a buddy's
+     * queue. A record cut short by a crash is trimmed off the file.
+     */
+    private int[] sizeOf(String bname) {
+        int[] size = (int[]) sizes.get(bname);
+        if (size == null) {
+            File file = fileFor(bname);
+            List messages = read(file);
+            size = new int[] {messages.size(), (int) file.length()};
+            sizes.put(bname, size);
+        }
+        return size;
+    }
+
+
+    private List read(File file) {
+        List messages = new ArrayList();
+        if (!file.exists()) {
+            return messages;
+        }
+        DataInputStream in = null;
+        long good = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                String message = in.readUTF();
+                messages.add(message);
+                good += 2 + utfLength(message);
+            }
+        } catch (EOFException e) {
+            // end of the queue, or a torn last record
+        } catch (IOException e) {
+            logger.severe("Error reading outbox " + file + ": " + e);
+        } finally {
+            close(in);
+        }
+        if (good < file.length()) {
+            logger.warning("Trimming partial record from " + file);
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(good);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                logger.severe("Unable to trim " + file + ": " + e);
+            }
+        }
+        return messages;
+    }
+
+
+    /**
+     * Bytes writeUTF uses for a string, not counting the length prefix
+     */
+    private static int utfLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                len++;
+            } else if (c > 0x07FF) {
+                len += 3;
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
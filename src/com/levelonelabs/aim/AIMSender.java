@@ -65,18 +65,22 @@ public interface AIMSender {
     public void addBuddies(List buddyList);
     public void removeBuddy(AIMBuddy buddy);
     public void removeBuddies(List buddyList);
+    public void moveBuddy(AIMBuddy buddy, String group);
 
     public void banBuddy(AIMBuddy buddy);
 
     public void addAIMListener(AIMListener listener);
 
     public void signOn();
+    public void connect();
     public void signOff();
 
     public void setPermitMode(int mode);
     public int getPermitMode();
     public void denyBuddy(AIMBuddy buddy);
     public void permitBuddy(AIMBuddy buddy);
+    public void denyBuddies(List buddyList);
+    public void permitBuddies(List buddyList);
 
     public void setAvailable();
     public void setUnavailable(String reason);
@@ -0,0 +1,521 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Compact binary snapshot of an AIMClient's buddy state: buddies with their
+ * groups, aliases, roles, preferences and queued messages, the groups in
+ * order, and the permit/deny lists. It is an alternative to the XMLizable
+ * format for hosts that restore many accounts at start up.
+ *
+ * A snapshot is read through a memory mapped file. Loading only reads the
+ * header, the permit/deny lists and the groups, then skims the buddy names
+ * to index where each record starts; a buddy's fields are decoded when it
+ * is asked for. Every record is still walked at load, without decoding, so
+ * a truncated or corrupt file is rejected there and never by a lookup.
+ *
+ * Layout, all big endian: magic, version, generation, permit mode,
+ * permitted names, denied names, groups (name and members), then buddy records each preceded
+ * by its length. Strings are an int byte count followed by UTF-8, lists an
+ * int count followed by the items.
+ */
+public class AIMSnapshot {
+    private static final int MAGIC = 0x41494D53; // "AIMS"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer data;
+    private final long generation;
+    private final int permitMode;
+    private final Set permitted;
+    private final Set denied;
+    // group name -> List of normalized buddy names, in saved order
+    private final Map groups;
+    // normalized buddy name -> Integer offset of the record
+    private final Map offsets;
+
+
+    private AIMSnapshot(ByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.remaining() < 8 || data.getInt() != MAGIC) {
+            throw new IOException("Not a buddy snapshot");
+        }
+        int version = data.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        generation = data.getLong();
+        permitMode = data.getInt();
+        permitted = new HashSet(readStrings(data));
+        denied = new HashSet(readStrings(data));
+
+        int groupCount = data.getInt();
+        groups = new LinkedHashMap();
+        for (int i = 0; i < groupCount; i++) {
+            String group = readString(data);
+            groups.put(group, readStrings(data));
+        }
+
+        int buddyCount = data.getInt();
+        offsets = new LinkedHashMap();
+        for (int i = 0; i < buddyCount; i++) {
+            int length = data.getInt();
+            int start = data.position();
+            if (length < 0 || length > data.remaining()) {
+                throw new IOException("Truncated snapshot at buddy " + i);
+            }
+            ByteBuffer record = data.duplicate();
+            record.limit(start + length);
+            offsets.put(AIMClient.imNormalize(readString(record)), Integer.valueOf(start));
+            skipBuddy(record, i);
+            data.position(start + length);
+        }
+    }
+
+
+    /**
+     * Write the state of a client to a file. The snapshot is written to a
+     * temporary file first and renamed over the target, so a crash never
+     * leaves a half written snapshot behind.
+     * 
+     * @param client
+     * @param file
+     * @throws IOException
+     */
+    public static void save(AIMClient client, File file) throws IOException {
+        save(client, file, 0);
+    }
+
+
+    /**
+     * Write the state of a client to a file, tagged with a generation the
+     * caller can use to tell which later changes it already holds
+     * 
+     * @param client
+     * @param file
+     * @param generation
+     *            returned by getGeneration once loaded
+     * @throws IOException
+     */
+    public static void save(AIMClient client, File file, long generation) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(client.getPermitMode());
+            writeStrings(out, client.getPermitted());
+            writeStrings(out, client.getDenied());
+
+            List groupNames = new ArrayList();
+            for (Iterator it = client.getGroupNames(); it.hasNext();) {
+                groupNames.add(it.next());
+            }
+            out.writeInt(groupNames.size());
+            for (int i = 0; i < groupNames.size(); i++) {
+                String group = (String) groupNames.get(i);
+                writeString(out, group);
+                writeStrings(out, client.getGroupBuddyNames(group));
+            }
+
+            List buddies = new ArrayList();
+            for (Iterator it = client.getBuddyNames(); it.hasNext();) {
+                AIMBuddy buddy = client.getBuddy((String) it.next());
+                if (buddy != null) {
+                    buddies.add(buddy);
+                }
+            }
+            out.writeInt(buddies.size());
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            for (int i = 0; i < buddies.size(); i++) {
+                record.reset();
+                writeBuddy(recordOut, (AIMBuddy) buddies.get(i));
+                recordOut.flush();
+                out.writeInt(record.size());
+                record.writeTo(out);
+            }
+            // on disk before the rename makes it the snapshot
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // renaming over the old snapshot replaces it in one step, so a crash
+        // leaves one or the other
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+
+    /**
+     * Map a snapshot file and index its buddies
+     * 
+     * @param file
+     * @return the snapshot
+     * @throws IOException
+     *             if the file can not be read or is not a valid snapshot
+     */
+    public static AIMSnapshot load(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping stays valid after the channel is closed
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return new AIMSnapshot(data);
+            } catch (RuntimeException e) {
+                // a short buffer surfaces as BufferUnderflowException
+                throw new IOException("Corrupt snapshot " + file + ": " + e);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Gets the generation the snapshot was saved with
+     * 
+     * @return the generation, 0 if none was given
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+
+    /**
+     * Gets the saved permit mode
+     * 
+     * @return the permit mode (see AIMSender)
+     */
+    public int getPermitMode() {
+        return permitMode;
+    }
+
+
+    /**
+     * Gets the saved permitted names
+     * 
+     * @return unmodifiable set of normalized names
+     */
+    public Set getPermitted() {
+        return Collections.unmodifiableSet(permitted);
+    }
+
+
+    /**
+     * Gets the saved denied names
+     * 
+     * @return unmodifiable set of normalized names
+     */
+    public Set getDenied() {
+        return Collections.unmodifiableSet(denied);
+    }
+
+
+    /**
+     * Gets the saved group names
+     * 
+     * @return iterator of group names, in saved order
+     */
+    public Iterator getGroupNames() {
+        return Collections.unmodifiableSet(groups.keySet()).iterator();
+    }
+
+
+    /**
+     * Gets the buddies in a saved group
+     * 
+     * @param group
+     * @return unmodifiable list of normalized names, empty if the group is
+     *         unknown
+     */
+    public List getGroupBuddyNames(String group) {
+        List names = (List) groups.get(group);
+        if (names == null) {
+            return Collections.EMPTY_LIST;
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+
+    /**
+     * Gets the number of saved buddies
+     * 
+     * @return the count
+     */
+    public int getBuddyCount() {
+        return offsets.size();
+    }
+
+
+    /**
+     * Gets the saved buddy names, without decoding any records
+     * 
+     * @return iterator of normalized names
+     */
+    public Iterator getBuddyNames() {
+        return Collections.unmodifiableSet(offsets.keySet()).iterator();
+    }
+
+
+    /**
+     * Decode one saved buddy. Each call builds a new AIMBuddy.
+     * 
+     * @param buddyName
+     * @return the buddy, or null if it is not in the snapshot
+     */
+    public AIMBuddy getBuddy(String buddyName) {
+        Integer offset = (Integer) offsets.get(AIMClient.imNormalize(buddyName));
+        if (offset == null) {
+            return null;
+        }
+        // a private cursor, so lookups from several threads do not collide
+        ByteBuffer record = data.duplicate();
+        record.position(offset.intValue());
+        return readBuddy(record);
+    }
+
+
+    /**
+     * Load the snapshot into a client that has not signed on yet. Buddies
+     * are added group by group in their saved order, and the permit and deny
+     * lists are set locally; nothing is sent to the server.
+     * 
+     * @param client
+     */
+    public void restore(AIMClient client) {
+        Set done = new HashSet();
+        for (Iterator it = groups.values().iterator(); it.hasNext();) {
+            restoreBuddies(client, ((List) it.next()).iterator(), done);
+        }
+        // anything the group index did not cover
+        restoreBuddies(client, offsets.keySet().iterator(), done);
+        client.restorePermitDeny(permitMode, permitted, denied);
+    }
+
+
+    private void restoreBuddies(AIMClient client, Iterator names, Set done) {
+        List buddies = new ArrayList();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            if (done.add(name)) {
+                AIMBuddy buddy = getBuddy(name);
+                if (buddy != null) {
+                    buddies.add(buddy);
+                }
+            }
+        }
+        if (!buddies.isEmpty()) {
+            client.addBuddies(buddies);
+        }
+    }
+
+
+    private static void writeBuddy(DataOutputStream out, AIMBuddy buddy) throws IOException {
+        writeString(out, buddy.getName());
+        writeString(out, buddy.getGroup());
+        // a buddy only has an alias if the server gave one
+        String alias = buddy.getAlias();
+        out.writeBoolean(alias != null);
+        if (alias != null) {
+            writeString(out, alias);
+        }
+        out.writeBoolean(buddy.isBanned());
+
+        String[] roles = buddy.getRoles();
+        out.writeInt(roles.length);
+        for (int i = 0; i < roles.length; i++) {
+            writeString(out, roles[i]);
+        }
+
+        List prefs = new ArrayList();
+        for (Iterator it = buddy.getPreferenceNames(); it.hasNext();) {
+            prefs.add(it.next());
+        }
+        out.writeInt(prefs.size());
+        for (int i = 0; i < prefs.size(); i++) {
+            String pref = (String) prefs.get(i);
+            writeString(out, pref);
+            writeString(out, buddy.getPreference(pref));
+        }
+
+        if (buddy.hasMessages()) {
+            writeStrings(out, buddy.getMessages());
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+
+    private static AIMBuddy readBuddy(ByteBuffer in) {
+        String name = readString(in);
+        String group = readString(in);
+        AIMBuddy buddy;
+        if (in.get() != 0) {
+            buddy = new AIMBuddy(name, group, readString(in));
+        } else {
+            buddy = new AIMBuddy(name, group);
+        }
+        buddy.setBanned(in.get() != 0);
+
+        int roles = in.getInt();
+        for (int i = 0; i < roles; i++) {
+            buddy.addRole(readString(in));
+        }
+        int prefs = in.getInt();
+        for (int i = 0; i < prefs; i++) {
+            buddy.setPreference(readString(in), readString(in));
+        }
+        int messages = in.getInt();
+        for (int i = 0; i < messages; i++) {
+            buddy.addMessage(readString(in));
+        }
+        return buddy;
+    }
+
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    private static void writeStrings(DataOutputStream out, Collection strings) throws IOException {
+        out.writeInt(strings.size());
+        for (Iterator it = strings.iterator(); it.hasNext();) {
+            writeString(out, (String) it.next());
+        }
+    }
+
+
+    /**
+     * Check the rest of a buddy record, after its name, fits inside it
+     */
+    private static void skipBuddy(ByteBuffer in, int index) throws IOException {
+        try {
+            skipString(in);
+            if (in.get() != 0) {
+                skipString(in);
+            }
+            in.get();
+            skipStrings(in);
+            int prefs = readCount(in);
+            for (int i = 0; i < prefs; i++) {
+                skipString(in);
+                skipString(in);
+            }
+            skipStrings(in);
+        } catch (IOException e) {
+            throw new IOException("Corrupt snapshot at buddy " + index + ": " + e.getMessage());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated snapshot at buddy " + index);
+        }
+    }
+
+
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if (count < 0) {
+            throw new IOException("negative count " + count);
+        }
+        return count;
+    }
+
+
+    private static void skipString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("bad string length " + length);
+        }
+        in.position(in.position() + length);
+    }
+
+
+    private static void skipStrings(ByteBuffer in) throws IOException {
+        int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            skipString(in);
+        }
+    }
+
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer bytes = in.slice();
+        bytes.limit(length);
+        in.position(in.position() + length);
+        return UTF8.decode(bytes).toString();
+    }
+
+
+    private static List readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        List strings = new ArrayList(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+}
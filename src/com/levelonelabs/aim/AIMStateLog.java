@@ -0,0 +1,498 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+
+
+/**
+ * Keeps an AIMClient's buddy state on disk as an AIMSnapshot plus an append
+ * only log of the changes made since. Make buddy changes through this class
+ * instead of on the AIMBuddy directly: each one is written as a single small
+ * record before it is applied, so saving a change never rewrites the whole
+ * state. Once the log holds enough records it is folded into a new snapshot
+ * and started again.
+ *
+ * Every record is synced to the disk before its change is applied, so a
+ * change that returned survives a power loss or kernel crash, not just the
+ * process dying. That costs one sync per change.
+ *
+ * The log starts with a generation number. Compacting saves the snapshot
+ * with the next generation before the log is restarted, so a log left over
+ * from a crash in between is recognized as already in the snapshot and is
+ * not replayed twice.
+ *
+ * Call open() before the client signs on; it restores the snapshot and
+ * replays the log into the client.
+ */
+public class AIMStateLog {
+    public static final int DEFAULT_COMPACT_THRESHOLD = 10000;
+
+    private static final int LOG_MAGIC = 0x41494D4C; // "AIML"
+    // magic and generation
+    private static final int HEADER_SIZE = 12;
+
+    private static final byte ADD_MESSAGE = 1;
+    private static final byte CLEAR_MESSAGES = 2;
+    private static final byte ADD_ROLE = 3;
+    private static final byte SET_PREFERENCE = 4;
+    private static final byte SET_BANNED = 5;
+    private static final byte MOVE = 6;
+
+    static Logger logger = Logger.getLogger(AIMStateLog.class.getName());
+
+    private final AIMClient client;
+    private final File snapshot;
+    private final File log;
+    private int compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+    private RandomAccessFile out;
+    // where the last whole record ends
+    private long length;
+    private long generation;
+    private int records;
+
+    // each record is built here, then written in one go
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+
+    /**
+     * Constructor for the AIMStateLog object
+     * 
+     * @param client
+     *            the client whose buddies are logged
+     * @param snapshot
+     *            the snapshot file
+     * @param log
+     *            the change log file
+     */
+    public AIMStateLog(AIMClient client, File snapshot, File log) {
+        this.client = client;
+        this.snapshot = snapshot;
+        this.log = log;
+    }
+
+
+    /**
+     * Sets how many records the log may hold before it is compacted
+     * 
+     * @param records
+     *            the threshold, or 0 to only compact when asked
+     */
+    public synchronized void setCompactThreshold(int records) {
+        this.compactThreshold = records;
+    }
+
+
+    /**
+     * Restore the snapshot, replay the log into the client and open the log
+     * for appending
+     * 
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        long snapshotGeneration = 0;
+        if (snapshot.exists()) {
+            AIMSnapshot saved = AIMSnapshot.load(snapshot);
+            saved.restore(client);
+            snapshotGeneration = saved.getGeneration();
+        }
+        long logGeneration = readGeneration();
+        if (logGeneration < snapshotGeneration) {
+            if (logGeneration >= 0) {
+                logger.info("State log " + log + " is already in the snapshot, not replaying it");
+            }
+            records = 0;
+            restart(snapshotGeneration);
+            return;
+        }
+        generation = logGeneration;
+        records = replay();
+        out = new RandomAccessFile(log, "rw");
+        out.seek(length);
+        logger.info("Replayed " + records + " buddy state changes from " + log);
+    }
+
+
+    /**
+     * Queue a message for a buddy
+     * 
+     * @param buddy
+     * @param message
+     * @throws IOException
+     */
+    public synchronized void addMessage(AIMBuddy buddy, String message) throws IOException {
+        begin(ADD_MESSAGE, buddy).writeUTF(message);
+        append();
+        buddy.addMessage(message);
+        compactIfDue();
+    }
+
+
+    /**
+     * Clear a buddy's queued messages
+     * 
+     * @param buddy
+     * @throws IOException
+     */
+    public synchronized void clearMessages(AIMBuddy buddy) throws IOException {
+        begin(CLEAR_MESSAGES, buddy);
+        append();
+        buddy.clearMessages();
+        compactIfDue();
+    }
+
+
+    /**
+     * Give a buddy a role
+     * 
+     * @param buddy
+     * @param role
+     * @throws IOException
+     */
+    public synchronized void addRole(AIMBuddy buddy, String role) throws IOException {
+        begin(ADD_ROLE, buddy).writeUTF(role);
+        append();
+        buddy.addRole(role);
+        compactIfDue();
+    }
+
+
+    /**
+     * Set a buddy preference
+     * 
+     * @param buddy
+     * @param pref
+     * @param val
+     * @throws IOException
+     */
+    public synchronized void setPreference(AIMBuddy buddy, String pref, String val) throws IOException {
+        DataOutputStream rec = begin(SET_PREFERENCE, buddy);
+        rec.writeUTF(pref);
+        rec.writeUTF(val);
+        append();
+        buddy.setPreference(pref, val);
+        compactIfDue();
+    }
+
+
+    /**
+     * Set whether a buddy is banned
+     * 
+     * @param buddy
+     * @param banned
+     * @throws IOException
+     */
+    public synchronized void setBanned(AIMBuddy buddy, boolean banned) throws IOException {
+        begin(SET_BANNED, buddy).writeBoolean(banned);
+        append();
+        buddy.setBanned(banned);
+        compactIfDue();
+    }
+
+
+    /**
+     * Move a buddy to another group, through AIMClient.moveBuddy
+     * 
+     * @param buddy
+     * @param group
+     * @throws IOException
+     */
+    public synchronized void moveBuddy(AIMBuddy buddy, String group) throws IOException {
+        begin(MOVE, buddy).writeUTF(group);
+        append();
+        client.moveBuddy(buddy, group);
+        compactIfDue();
+    }
+
+
+    /**
+     * Write the client's current state as the new snapshot and empty the log
+     * 
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        long next = generation + 1;
+        AIMSnapshot.save(client, snapshot, next);
+        // a crash before the log is restarted leaves a log of an older
+        // generation than the snapshot, which open() skips
+        logger.info("Compacted " + records + " buddy state changes into " + snapshot);
+        records = 0;
+        restart(next);
+    }
+
+
+    /**
+     * Close the log
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+
+    /**
+     * Start a record in the buffer. Nothing reaches the log until append().
+     */
+    private DataOutputStream begin(byte op, AIMBuddy buddy) throws IOException {
+        if (out == null) {
+            throw new IOException("State log is not open");
+        }
+        record.reset();
+        recordOut.writeByte(op);
+        recordOut.writeUTF(AIMClient.imNormalize(buddy.getName()));
+        return recordOut;
+    }
+
+
+    /**
+     * Write the buffered record to the log and sync it. If that fails part
+     * way the log is cut back to the last whole record.
+     */
+    private void append() throws IOException {
+        recordOut.flush();
+        try {
+            out.write(record.toByteArray());
+            out.getFD().sync();
+        } catch (IOException e) {
+            try {
+                out.setLength(length);
+                out.seek(length);
+            } catch (IOException trimFailed) {
+                logger.severe("Unable to trim partial record from " + log + ": " + trimFailed);
+            }
+            throw e;
+        }
+        length += record.size();
+        records++;
+    }
+
+
+    private void compactIfDue() throws IOException {
+        if (compactThreshold > 0 && records >= compactThreshold) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Empty the log and start it at a generation
+     */
+    private void restart(long newGeneration) throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.setLength(0);
+            raf.writeInt(LOG_MAGIC);
+            raf.writeLong(newGeneration);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        out = raf;
+        length = HEADER_SIZE;
+        generation = newGeneration;
+    }
+
+
+    /**
+     * Read the generation from the log header
+     * 
+     * @return the generation, or -1 if there is no whole header
+     */
+    private long readGeneration() throws IOException {
+        if (!log.exists() || log.length() < HEADER_SIZE) {
+            return -1;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(log));
+        try {
+            if (in.readInt() != LOG_MAGIC) {
+                throw new IOException("Not a buddy state log: " + log);
+            }
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Apply every complete record in the log to the client. A record cut
+     * short by a crash ends the replay and is trimmed off the file.
+     * 
+     * @return the number of records applied
+     */
+    private int replay() throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(log)));
+        DataInputStream in = new DataInputStream(counter);
+        int count = 0;
+        long good = HEADER_SIZE;
+        try {
+            in.readInt();
+            in.readLong();
+            while (true) {
+                // read the whole record before touching the client
+                byte op = in.readByte();
+                String name = in.readUTF();
+                String arg = null;
+                String val = null;
+                boolean flag = false;
+                switch (op) {
+                    case ADD_MESSAGE :
+                    case ADD_ROLE :
+                    case MOVE :
+                        arg = in.readUTF();
+                        break;
+                    case SET_PREFERENCE :
+                        arg = in.readUTF();
+                        val = in.readUTF();
+                        break;
+                    case SET_BANNED :
+                        flag = in.readBoolean();
+                        break;
+                    case CLEAR_MESSAGES :
+                        break;
+                    default :
+                        throw new IOException("Unknown record type " + op + " in " + log);
+                }
+                apply(op, name, arg, val, flag);
+                count++;
+                good = counter.count;
+            }
+        } catch (EOFException e) {
+            // end of the log, or a torn last record
+        } finally {
+            in.close();
+        }
+        if (good < log.length()) {
+            logger.warning("Trimming partial record from " + log);
+            RandomAccessFile raf = new RandomAccessFile(log, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+        }
+        length = good;
+        return count;
+    }
+
+
+    private void apply(byte op, String name, String arg, String val, boolean flag) {
+        AIMBuddy buddy = client.getBuddy(name);
+        if (buddy == null) {
+            // added after the last snapshot
+            buddy = new AIMBuddy(name);
+            client.addBuddy(buddy);
+        }
+        switch (op) {
+            case ADD_MESSAGE :
+                buddy.addMessage(arg);
+                break;
+            case CLEAR_MESSAGES :
+                buddy.clearMessages();
+                break;
+            case ADD_ROLE :
+                buddy.addRole(arg);
+                break;
+            case SET_PREFERENCE :
+                buddy.setPreference(arg, val);
+                break;
+            case SET_BANNED :
+                buddy.setBanned(flag);
+                break;
+            case MOVE :
+                client.moveBuddy(buddy, arg);
+                break;
+        }
+    }
+
+
+    /**
+     * Counts the bytes handed to the reader, to find where the last whole
+     * record ends
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
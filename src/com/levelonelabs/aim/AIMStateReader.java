@@ -0,0 +1,176 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+
+/**
+ * Streams buddies and groups out of a state file written in the XMLizable
+ * format, without building a DOM. Each buddy or group is handed to the
+ * callback as soon as its closing tag is read and is not referenced again,
+ * so memory use does not grow with the size of the file.
+ *
+ * A buddy element directly inside a group element is taken as a member of
+ * that group; any other buddy element is a full buddy record.
+ */
+public class AIMStateReader {
+    /**
+     * Receives the records as they are read
+     */
+    public interface Callback {
+        /**
+         * Called once for each buddy record
+         *
+         * @param buddy
+         */
+        public void buddy(AIMBuddy buddy);
+
+
+        /**
+         * Called once for each group
+         *
+         * @param group
+         */
+        public void group(AIMGroup group);
+    }
+
+
+    private final SAXParserFactory factory;
+
+
+    /**
+     * Constructor for the AIMStateReader object
+     */
+    public AIMStateReader() {
+        factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(false);
+        factory.setValidating(false);
+    }
+
+
+    /**
+     * Read a state file, passing each record to the callback
+     *
+     * @param in
+     *            the XML to read, not closed
+     * @param callback
+     *            where to send the records
+     * @throws IOException
+     *             if the stream can not be read or is not well formed
+     */
+    public void read(InputStream in, Callback callback) throws IOException {
+        try {
+            SAXParser parser = factory.newSAXParser();
+            parser.parse(in, new Handler(callback));
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.toString());
+        } catch (SAXException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+
+    private static class Handler extends DefaultHandler {
+        private final Callback callback;
+        private AIMBuddy buddy;
+        private AIMGroup group;
+        private StringBuffer message;
+
+
+        Handler(Callback callback) {
+            this.callback = callback;
+        }
+
+
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            if (qName.equals("group")) {
+                group = new AIMGroup(atts.getValue("name"));
+            } else if (qName.equals("buddy")) {
+                if (group != null) {
+                    group.add(atts.getValue("name"));
+                    return;
+                }
+                String groupName = atts.getValue("group");
+                if (groupName == null || groupName.trim().equals("")) {
+                    groupName = AIMSender.DEFAULT_GROUP;
+                }
+                buddy = new AIMBuddy(atts.getValue("name"), groupName);
+                buddy.setBanned("true".equalsIgnoreCase(atts.getValue("isBanned")));
+            } else if (buddy != null) {
+                if (qName.equals("role")) {
+                    buddy.addRole(atts.getValue("name"));
+                } else if (qName.equals("preference")) {
+                    buddy.setPreference(atts.getValue("name"), atts.getValue("value"));
+                } else if (qName.equals("message")) {
+                    message = new StringBuffer();
+                }
+            }
+        }
+
+
+        public void characters(char[] ch, int start, int length) {
+            if (message != null) {
+                message.append(ch, start, length);
+            }
+        }
+
+
+        public void endElement(String uri, String localName, String qName) {
+            if (qName.equals("group")) {
+                if (group != null) {
+                    callback.group(group);
+                    group = null;
+                }
+            } else if (qName.equals("buddy")) {
+                if (buddy != null) {
+                    callback.buddy(buddy);
+                    buddy = null;
+                }
+            } else if (qName.equals("message") && message != null) {
+                buddy.addMessage(message.toString());
+                message = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+
+/**
+ * Writes buddies and groups in the XMLizable format straight to a Writer,
+ * one record at a time, so a large state file never has to be held as a
+ * DOM. The output can be read back with AIMStateReader, or parsed into a
+ * DOM and passed to readState.
+ */
+public class AIMStateWriter {
+    private final Writer out;
+    private final String root;
+    private boolean closed;
+
+
+    /**
+     * Constructor for the AIMStateWriter object, writes the XML declaration
+     * and opens the root element
+     *
+     * @param out
+     *            where to write, should use UTF-8
+     * @param root
+     *            name of the root element
+     * @throws IOException
+     */
+    public AIMStateWriter(Writer out, String root) throws IOException {
+        this.out = out;
+        this.root = root;
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<");
+        out.write(root);
+        out.write(">\n");
+    }
+
+
+    /**
+     * Write a full buddy record
+     *
+     * @param buddy
+     * @throws IOException
+     */
+    public void writeBuddy(AIMBuddy buddy) throws IOException {
+        out.write("<buddy name=\"");
+        escape(buddy.getName());
+        out.write("\" group=\"");
+        escape(buddy.getGroup());
+        out.write("\" isBanned=\"");
+        out.write(Boolean.toString(buddy.isBanned()));
+        out.write("\">");
+
+        String[] roles = buddy.getRoles();
+        for (int i = 0; i < roles.length; i++) {
+            out.write("<role name=\"");
+            escape(roles[i]);
+            out.write("\"/>");
+        }
+
+        Iterator prefs = buddy.getPreferenceNames();
+        while (prefs.hasNext()) {
+            String pref = (String) prefs.next();
+            out.write("<preference name=\"");
+            escape(pref);
+            out.write("\" value=\"");
+            escape(buddy.getPreference(pref));
+            out.write("\"/>");
+        }
+
+        if (buddy.hasMessages()) {
+            ArrayList messages = buddy.getMessages();
+            for (int i = 0; i < messages.size(); i++) {
+                out.write("<message><![CDATA[");
+                // a CDATA section can not contain its own terminator, so split
+                // it across two sections
+                String message = (String) messages.get(i);
+                int from = 0;
+                int end;
+                while ((end = message.indexOf("]]>", from)) >= 0) {
+                    out.write(message, from, end + 2 - from);
+                    out.write("]]><![CDATA[");
+                    from = end + 2;
+                }
+                out.write(message, from, message.length() - from);
+                out.write("]]></message>");
+            }
+        }
+        out.write("</buddy>\n");
+    }
+
+
+    /**
+     * Write a group and its member names
+     *
+     * @param group
+     * @throws IOException
+     */
+    public void writeGroup(AIMGroup group) throws IOException {
+        out.write("<group name=\"");
+        escape(group.getName());
+        out.write("\">");
+        for (Iterator it = group.iterator(); it.hasNext();) {
+            out.write("<buddy name=\"");
+            escape((String) it.next());
+            out.write("\"/>");
+        }
+        out.write("</group>\n");
+    }
+
+
+    /**
+     * Close the root element and the underlying Writer
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.write("</");
+        out.write(root);
+        out.write(">\n");
+        out.close();
+    }
+
+
+    private void escape(String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ * Hands buddy events off to a fixed set of single threaded executors, picked
+ * by the buddy's screen name. Events from one buddy are always handled in
+ * order on the same stripe, while different buddies are handled in parallel.
+ * Session events (connected, disconnected, config, errors) are queued on every
+ * stripe and act as a barrier: they are handled once every stripe has handled
+ * the buddy events before them, and no stripe moves on until they are done.
+ * So a buddy event is never seen after the disconnect that followed it.
+ * Anonymous warnings are passed straight through on the calling thread.
+ *
+ * The wrapped listener must be safe to call from several threads at once.
+ */
+public class AIMStripedListener implements AIMListener {
+    static Logger logger = Logger.getLogger(AIMStripedListener.class.getName());
+
+    private final AIMListener listener;
+    private final ExecutorService[] stripes;
+    // barriers must reach every stripe in the same order, or two of them
+    // could each wait on a stripe held by the other
+    private final Object barrierLock = new Object();
+
+
+    /**
+     * Constructor for the AIMStripedListener object, with one stripe per
+     * available processor
+     *
+     * @param listener
+     *            the listener to dispatch to
+     */
+    public AIMStripedListener(AIMListener listener) {
+        this(listener, Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Constructor for the AIMStripedListener object
+     *
+     * @param listener
+     *            the listener to dispatch to
+     * @param threads
+     *            the number of stripes
+     */
+    public AIMStripedListener(AIMListener listener, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.listener = listener;
+        this.stripes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            final String threadName = "aim-dispatch-" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Stop the stripe threads after the events already queued are handled
+     *
+     * @param timeoutMillis
+     *            how long to wait for the queued events
+     * @return true if every stripe finished in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i].shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (int i = 0; i < stripes.length; i++) {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                if (!stripes[i].awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+
+    private void dispatch(AIMBuddy buddy, final Runnable task) {
+        String key = AIMClient.imNormalize(buddy.getName());
+        int stripe = (key.hashCode() & 0x7fffffff) % stripes.length;
+        try {
+            stripes[stripe].execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Dispatcher shut down, dropping event for " + key);
+        }
+    }
+
+
+    private void dispatchToAll(Runnable task) {
+        synchronized (barrierLock) {
+            Barrier barrier = new Barrier(task, stripes.length);
+            for (int i = 0; i < stripes.length; i++) {
+                try {
+                    stripes[i].execute(barrier);
+                } catch (RejectedExecutionException e) {
+                    // a stripe that is shut down has nothing left to order
+                    barrier.arrive();
+                }
+            }
+        }
+    }
+
+
+    public void handleMessage(final AIMBuddy buddy, final String request) {
+        dispatch(buddy, new Runnable() {
+            public void run() {
+                listener.handleMessage(buddy, request);
+            }
+        });
+    }
+
+
+    public void handleWarning(final AIMBuddy buddy, final int amount) {
+        if (buddy == null) {
+            // anonymous warnings have nobody to order against
+            listener.handleWarning(buddy, amount);
+            return;
+        }
+        dispatch(buddy, new Runnable() {
+            public void run() {
+                listener.handleWarning(buddy, amount);
+            }
+        });
+    }
+
+
+    public void handleBuddySignOn(final AIMBuddy buddy, final String info) {
+        dispatch(buddy, new Runnable() {
+            public void run() {
+                listener.handleBuddySignOn(buddy, info);
+            }
+        });
+    }
+
+
+    public void handleBuddySignOff(final AIMBuddy buddy, final String info) {
+        dispatch(buddy, new Runnable() {
+            public void run() {
+                listener.handleBuddySignOff(buddy, info);
+            }
+        });
+    }
+
+
+    public void handleBuddyAvailable(final AIMBuddy aimbud, final String message) {
+        dispatch(aimbud, new Runnable() {
+            public void run() {
+                listener.handleBuddyAvailable(aimbud, message);
+            }
+        });
+    }
+
+
+    public void handleBuddyUnavailable(final AIMBuddy aimbud, final String message) {
+        dispatch(aimbud, new Runnable() {
+            public void run() {
+                listener.handleBuddyUnavailable(aimbud, message);
+            }
+        });
+    }
+
+
+    public void handleConnected() {
+        dispatchToAll(new Runnable() {
+            public void run() {
+                listener.handleConnected();
+            }
+        });
+    }
+
+
+    public void handleDisconnected() {
+        dispatchToAll(new Runnable() {
+            public void run() {
+                listener.handleDisconnected();
+            }
+        });
+    }
+
+
+    public void handleConfigReady(final Map<String, AIMBuddy> m) {
+        dispatchToAll(new Runnable() {
+            public void run() {
+                listener.handleConfigReady(m);
+            }
+        });
+    }
+
+
+    public void handleError(final String error, final String message) {
+        dispatchToAll(new Runnable() {
+            public void run() {
+                listener.handleError(error, message);
+            }
+        });
+    }
+
+
+    /**
+     * A session event queued on every stripe. The last stripe to reach it
+     * handles it; the others wait until that is done.
+     */
+    private static class Barrier implements Runnable {
+        private final Runnable task;
+        private final AtomicInteger waiting;
+        private final CountDownLatch delivered = new CountDownLatch(1);
+
+
+        Barrier(Runnable task, int stripes) {
+            this.task = task;
+            this.waiting = new AtomicInteger(stripes);
+        }
+
+
+        public void run() {
+            if (arrive()) {
+                return;
+            }
+            try {
+                delivered.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        /**
+         * Count one stripe in, and handle the event if it was the last
+         *
+         * @return true if the event was handled
+         */
+        boolean arrive() {
+            if (waiting.decrementAndGet() > 0) {
+                return false;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                delivered.countDown();
+            }
+            return true;
+        }
+    }
+}
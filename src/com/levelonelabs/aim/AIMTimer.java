@@ -0,0 +1,234 @@
+/*------------------------------------------------------------------------------
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is levelonelabs.com code.
+ * The Initial Developer of the Original Code is Level One Labs. Portions
+ * created by the Initial Developer are Copyright (C) 2001 the Initial
+ * Developer. All Rights Reserved.
+ *
+ *         Contributor(s):
+ *             Scott Oster      (ostersc@alum.rpi.edu)
+ *             Steve Zingelwicz (sez@po.cwru.edu)
+ *             William Gorman   (willgorman@hotmail.com)
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable
+ * instead of those above. If you wish to allow use of your version of this
+ * file only under the terms of either the GPL or the LGPL, and not to allow
+ * others to use your version of this file under the terms of the NPL, indicate
+ * your decision by deleting the provisions above and replace them with the
+ * notice and other provisions required by the GPL or the LGPL. If you do not
+ * delete the provisions above, a recipient may use your version of this file
+ * under the terms of any one of the NPL, the GPL or the LGPL.
+ *----------------------------------------------------------------------------*/
+
+
+package com.levelonelabs.aim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+
+/**
+ * A hashed wheel timer: one thread serving any number of timeouts, with
+ * constant time scheduling and cancelling. Timeouts are hashed into a ring
+ * of slots by their due tick; every tick the thread visits one slot and runs
+ * whatever has come due, so precision is one tick. Every AIMClient in the
+ * JVM shares getShared(), keeping the thread count flat however many
+ * sessions are open.
+ *
+ * Tasks run on the timer thread and should be short; a task that blocks
+ * delays every other session's timeouts.
+ */
+public class AIMTimer implements Runnable {
+    /**
+     * A scheduled task
+     */
+    public interface Timeout {
+        /**
+         * Stop the task from running
+         *
+         * @return false if it already ran or was cancelled
+         */
+        public boolean cancel();
+    }
+
+
+    static Logger logger = Logger.getLogger(AIMTimer.class.getName());
+
+    private static AIMTimer shared;
+
+    private final long tickMillis;
+    private final Set[] wheel;
+    private final String threadName;
+    private Thread worker;
+    // System.nanoTime() when the worker started
+    private long startTime;
+    // the next tick to be processed
+    private long tick;
+    private boolean stopped;
+
+
+    /**
+     * Gets the timer shared by all clients, 100ms ticks and 512 slots
+     *
+     * @return the shared timer
+     */
+    public static synchronized AIMTimer getShared() {
+        if (shared == null) {
+            shared = new AIMTimer(100, 512, "aim-timer");
+        }
+        return shared;
+    }
+
+
+    /**
+     * Constructor for the AIMTimer object. The thread starts with the first
+     * schedule call.
+     *
+     * @param tickMillis
+     *            length of a tick
+     * @param wheelSize
+     *            number of slots; timeouts further off than one turn wait
+     *            out the extra turns in their slot
+     * @param threadName
+     */
+    public AIMTimer(long tickMillis, int wheelSize, String threadName) {
+        if (tickMillis < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("tick and wheel size must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.threadName = threadName;
+        this.wheel = new Set[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new HashSet();
+        }
+    }
+
+
+    /**
+     * Run a task once after a delay
+     *
+     * @param task
+     * @param delayMillis
+     *            rounded up to whole ticks
+     * @return handle for cancelling the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        if (stopped) {
+            throw new IllegalStateException("Timer " + threadName + " is stopped");
+        }
+        if (worker == null) {
+            startTime = System.nanoTime();
+            worker = new Thread(this, threadName);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Entry entry = new Entry(task);
+        entry.rounds = (ticks - 1) / wheel.length;
+        entry.slot = (int) ((tick + ticks - 1) % wheel.length);
+        wheel[entry.slot].add(entry);
+        return entry;
+    }
+
+
+    /**
+     * Stop the timer thread; pending tasks never run
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+
+    /**
+     * Main processing method for the timer thread
+     */
+    public void run() {
+        while (true) {
+            long deadline;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                deadline = startTime + (tick + 1) * tickMillis * 1000000L;
+            }
+            // nanoTime, so setting the wall clock neither stalls nor rushes us
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep((wait + 999999L) / 1000000L);
+                } catch (InterruptedException e) {
+                    synchronized (this) {
+                        if (stopped) {
+                            return;
+                        }
+                    }
+                }
+            }
+
+            List due = new ArrayList();
+            synchronized (this) {
+                Set slot = wheel[(int) (tick % wheel.length)];
+                for (Iterator it = slot.iterator(); it.hasNext();) {
+                    Entry entry = (Entry) it.next();
+                    if (entry.rounds == 0) {
+                        it.remove();
+                        entry.done = true;
+                        due.add(entry);
+                    } else {
+                        entry.rounds--;
+                    }
+                }
+                tick++;
+            }
+            for (int i = 0; i < due.size(); i++) {
+                try {
+                    ((Entry) due.get(i)).task.run();
+                } catch (Throwable t) {
+                    logger.severe("Timer task failed: " + t);
+                }
+            }
+        }
+    }
+
+
+    private class Entry implements Timeout {
+        final Runnable task;
+        long rounds;
+        int slot;
+        boolean done;
+
+
+        Entry(Runnable task) {
+            this.task = task;
+        }
+
+
+        public boolean cancel() {
+            synchronized (AIMTimer.this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                wheel[slot].remove(this);
+                return true;
+            }
+        }
+    }
+}
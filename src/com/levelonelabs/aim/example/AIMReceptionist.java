@@ -32,12 +32,13 @@
 
 package com.levelonelabs.aim.example;
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.Date;
 
 import com.levelonelabs.aim.AIMAdapter;
 import com.levelonelabs.aim.AIMBuddy;
 import com.levelonelabs.aim.AIMClient;
+import com.levelonelabs.aim.AIMOutbox;
 import com.levelonelabs.aim.AIMSender;
 
 
@@ -71,6 +72,9 @@ public class AIMReceptionist {
 		// buddy list
 		final AIMSender aim = new AIMClient(username, pass, "AIM Receiptionist", true);
 		aim.addBuddy(newName);
+		//saved messages live on disk and go out when newName signs on
+		final AIMOutbox outbox = new AIMOutbox(aim, new File("outbox"));
+		aim.addAIMListener(outbox);
 		aim.addAIMListener(new AIMAdapter() {
 			//respond to new messages
 			public void handleMessage(AIMBuddy buddy, String request) {
@@ -78,26 +82,8 @@ public class AIMReceptionist {
 					+ " doesn't use this name anymore, but I'll forward the message.");
 				if (newName.isOnline()) {
 					aim.sendMessage(newName, buddy.getName() + " said: " + request);
-				} else {
-					newName.addMessage(buddy.getName() + " said \"" + request + "\" at " + new Date());
-				}
-			}
-
-
-			//forward any saved messages
-			public void handleBuddySignOn(AIMBuddy buddy, String info) {
-				if (buddy.getName().equalsIgnoreCase(newName.getName()) && buddy.hasMessages()) {
-					ArrayList messages = buddy.getMessages();
-					String message = "";
-
-					//collect the messages
-					for (int i = 0; i < messages.size(); i++) {
-						message += (messages.get(i) + "<BR>");
-					}
-
-					//send the list
-					aim.sendMessage(buddy, message);
-					buddy.clearMessages();
+				} else if (!outbox.queue(newName, buddy.getName() + " said \"" + request + "\" at " + new Date())) {
+					aim.sendMessage(buddy, "Sorry, too many messages are waiting already.");
 				}
 			}
 		});
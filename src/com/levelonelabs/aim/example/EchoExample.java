@@ -36,6 +36,7 @@ import com.levelonelabs.aim.AIMAdapter;
 import com.levelonelabs.aim.AIMBuddy;
 import com.levelonelabs.aim.AIMClient;
 import com.levelonelabs.aim.AIMSender;
+import com.levelonelabs.aim.AIMStripedListener;
 
 
 /**
@@ -49,7 +50,8 @@ public class EchoExample {
 	/**
 	 * The main program for the EchoExample class Starts up a aimclient and
 	 * signs it on. Then registers a listener that gets called when someone
-	 * messages the bot. It simply echos back what they said.
+	 * messages the bot. It simply echos back what they said. Messages from
+	 * different buddies are echoed in parallel, one thread per processor.
 	 * 
 	 * @param args
 	 *            username password
@@ -58,11 +60,11 @@ public class EchoExample {
 		//username, password, true indicates to add all that talk to it to the
 		// buddy list
 		final AIMSender aim = new AIMClient(args[0], args[1], "Simple Echo Bot", true);
-		aim.addAIMListener(new AIMAdapter() {
+		aim.addAIMListener(new AIMStripedListener(new AIMAdapter() {
 			public void handleMessage(AIMBuddy buddy, String request) {
 				aim.sendMessage(buddy, "Echo: " + request);
 			}
-		});
+		}));
 		aim.signOn();
 	}
 }
\ No newline at end of file
@@ -5,19 +5,64 @@ package com.penn.cis121.androidmessenger;
 
 import java.util.HashMap;
 
-import com.penn.cis121.androidmessenger.protocols.*;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
 
+/*
+ * Protocol services declare their display name in the manifest:
+ * 
+ *   <service android:name=".protocols.Aim">
+ *       <meta-data android:name="com.penn.cis121.androidmessenger.PROTOCOL" android:value="AIM"/>
+ *   </service>
+ * 
+ * load() reads those once, so the protocols are known by class name
+ * without loading or instantiating any of the services.
+ */
 public class AMProtocolMapper {
-	public static HashMap<Class<? extends Object>,String> names = new HashMap<Class<? extends Object>,String>();
+	public static final String PROTOCOL_META_DATA = "com.penn.cis121.androidmessenger.PROTOCOL";
+
+	/* service class name -> protocol display name */
+	public static HashMap<String,String> names = new HashMap<String,String>();
+	private static boolean loaded = false;
 
-	public static void addMapping(Class<? extends Object> c, String connectionTypeName){
-		names.put(c,connectionTypeName);
+	/**
+	 * Register every protocol service declared in our manifest; only the
+	 * first call does any work
+	 * 
+	 * @param context any context in this package
+	 */
+	public static synchronized void load(Context context){
+		if (loaded)
+			return;
+		try {
+			PackageInfo pi = context.getPackageManager().getPackageInfo(context.getPackageName(),
+					PackageManager.GET_SERVICES | PackageManager.GET_META_DATA);
+			if (pi.services != null) {
+				for (ServiceInfo s : pi.services) {
+					Bundle meta = s.metaData;
+					if (meta != null && meta.getString(PROTOCOL_META_DATA) != null)
+						addMapping(s.name, meta.getString(PROTOCOL_META_DATA));
+				}
+			}
+			loaded = true;
+		} catch (PackageManager.NameNotFoundException e) {
+			// our own package; can't happen
+		}
+	}
+	public static synchronized void addMapping(String className, String connectionTypeName){
+		names.put(className,connectionTypeName);
+	}
+	public static synchronized String getName(String className){
+		return names.get(className);
 	}
 	public static String getName(Class<? extends Object> c){
-		return names.get(c);
+		return getName(c.getName());
 	}
-	public static HashMap<Class<? extends Object>, String> getAll(){
-		return names;
+	public static synchronized HashMap<String, String> getAll(){
+		return new HashMap<String, String>(names);
 	}
 	
 }
@@ -54,18 +54,18 @@ public class AccountEditor extends Activity {
 		editAccountCallback ocl = new editAccountCallback();
 		editButton.setOnClickListener(ocl);
 		deleteButton.setOnClickListener(ocl);
-		HashMap<Class<? extends Object>, String> all = AMProtocolMapper
-				.getAll();
+		AMProtocolMapper.load(this);
+		HashMap<String, String> all = AMProtocolMapper.getAll();
 		names = new HashMap<String, String>();
 		
 		Intent i = getIntent();		
 		int cursor = 0;
 		String inName = i.getStringExtra("className");
-		for (Class<? extends Object> c : all.keySet()) {
-			names.put(all.get(c), c.getName().toString());
-			if (inName != null && inName.equals( c.getName().toString())) {
+		for (String className : all.keySet()) {
+			names.put(all.get(className), className);
+			if (inName != null && inName.equals(className)) {
 				connection.setSelection(cursor);
-				oclassName = c.getName().toString();
+				oclassName = className;
 			}
 			cursor++;
 		}
@@ -18,12 +18,11 @@ import android.content.IntentFilter;
 import android.content.IntentReceiver;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.DeadObjectException;
+import android.os.Handler;
 import android.os.IBinder;
 import android.text.Layout;
 import android.view.Menu;
@@ -46,14 +45,19 @@ public class AndroidMessenger extends ListActivity {
 	private final int EDIT_OPTION = ADD_OPTION + 1;
 	private final int EXIT_OPTION = EDIT_OPTION + 1;
 	private final int EDIT_ACCOUNT = 0;
+	/* Buddies read from a service per trip through the message loop */
+	private static final int CONFIG_PAGE_SIZE = 50;
 	
 	/** Data Storage **/
 	private List<ServiceConnection> serviceConnections;
 	private List<ConnectionView> connectionViews;
 	private HashMap<Integer,ConnectionView> viewsById;
+	private HashMap<Integer,ConfigLoader> configLoaders;
 	
 	/** Instance Vars **/
 	private AMListener aml;
+	private AMCallback callback;
+	private Handler handler;
 	private BuddyListAdapter bla;
 	private Logger logger;
 	private boolean connectionWindowOpen = false;
@@ -74,45 +78,28 @@ public class AndroidMessenger extends ListActivity {
 		connectionViews = new ArrayList<ConnectionView>();
 		waiting = new LinkedList<Bundle>();
 		viewsById = new HashMap<Integer, ConnectionView>();
+		configLoaders = new HashMap<Integer, ConfigLoader>();
 		
-		// Setup the intent filter that will listen to services
+		// Setup the intent filter that will listen to the conversation window
 		aml = new AMListener(this);
 		registerReceiver(aml, new IntentFilter("AndroidMessenger"));
 		
+		// Service events arrive on binder threads; handle them on ours
+		handler = new Handler();
+		callback = new AMCallback();
+		
+		// Connection ids start over, so the old conversations point nowhere
+		ConversationStore.get().reset();
 		//Clear junk left over from the hack ConversationContinaer
 		clearPrefs();
 		
-		try {
-			/* VOODOO!
-			 * 
-			 * Instantiate each class once to force java
-			 * to run all of the static{} blocks
-			 * which register with AMProtocolMapper.
-			 * 
-			 * statc {} blocks are run when a class is loaded by the java 
-			 * runtime environment.  We need those blocks to be run to know 
-			 * certain information about that class.  So we force them to
-			 * be loaded by finding them all, and making a fake instance 
-			 * of them.  This enables you to simply write your own 
-			 * protocol files, write an appropriate static {} block,
-			 * throw it in the proper package, and it'll just work.	
-			 * 
-			 * Basically consider it some reflection magic.
-			 */			
-			PackageManager m = getPackageManager();
-			String pn = getPackageName();
-			PackageInfo pi = m.getPackageInfo(pn, PackageManager.GET_SERVICES);
-			for (android.content.pm.ServiceInfo s : pi.services) {
-				Class<? extends Object> c = getClassLoader().loadClass(s.name);
-				@SuppressWarnings("unused")
-				Object o = c.newInstance();		
-				
-			}
-		} catch (Exception e) {
-			/* So many things cold possible go wrong with reflection
-			 * if any of them do we don't care too much so do nothing
-			 */
-		}
+		/*
+		 * Learn the protocols from the <meta-data> on each service in the
+		 * manifest.  To add a protocol, write the service, put it in the
+		 * proper package and declare it there with its display name; no
+		 * service class is loaded or instantiated until an account uses it.
+		 */
+		AMProtocolMapper.load(this);
 
 		// Miscellaneous
 		setDefaultKeyMode(SHORTCUT_DEFAULT_KEYS);
@@ -138,6 +125,16 @@ public class AndroidMessenger extends ListActivity {
 	protected void onDestroy() {
 		super.onDestroy();
 		// Stop and unbind all the services
+		for (ConnectionView cv : connectionViews) {
+			AMService am = cv.getService();
+			if (am != null) {
+				try {
+					am.unregisterCallback(callback);
+				} catch (DeadObjectException e) {
+					// already gone
+				}
+			}
+		}
 		for (ServiceConnection cv : serviceConnections) {
 			unbindService(cv);
 			stopService(new Intent(this, cv.getClass()));
@@ -220,25 +217,37 @@ public class AndroidMessenger extends ListActivity {
 		return getClass().getClassLoader().loadClass(classname);
 	}
 	/**
-	 * Parse and handle a config coming from the AIM thread
+	 * Parse and handle one page of a config read from a service. The
+	 * caller rebuilds the list once the last page is in.
 	 * 
-	 * @param config - a bunch of options we need to work with
+	 * @param page - name, group, alias, online of each buddy, one after the other
 	 * @param cv - the connection the config came from
 	 */
-	private void parseConfig(Bundle config, ConnectionView cv) {
-		for (String s : config.keySet()) {
-			try {
-				Bundle buddy = config.getBundle(s);
-				if (buddy == null)
-					continue;
-				BuddyView bv = new BuddyView(this, buddy.getString("name"),
-						buddy.getString("group"), buddy.getString("alias"), cv);
-				bla.addBuddy(bv);
-			} catch (ClassCastException c) {
-				// Some of these will happen, (username etc.) its OK
-			}
+	private void parseConfig(String[] page, ConnectionView cv) {
+		for (int i = 0; i + 3 < page.length; i += 4) {
+			if (page[i] == null)
+				continue;
+			BuddyView bv = new BuddyView(this, page[i], page[i + 1], page[i + 2], cv);
+			bv.setOnline(Boolean.parseBoolean(page[i + 3]));
+			bla.addBuddy(bv);
 		}
-		bla.regenList();
+	}
+	/**
+	 * Start reading a connection's buddy list, replacing any read
+	 * of an older list still in progress
+	 * 
+	 * @param cv - the connection whose config is ready
+	 * @param count - how many buddies the service holds
+	 */
+	private void loadConfig(ConnectionView cv, int count) {
+		ConfigLoader old = configLoaders.remove(cv.getId());
+		if (old != null)
+			handler.removeCallbacks(old);
+		if (count <= 0)
+			return;
+		ConfigLoader loader = new ConfigLoader(cv, count);
+		configLoaders.put(cv.getId(), loader);
+		handler.post(loader);
 	}
 	/**
 	 * remove all buddys in the cv from the buddylist
@@ -313,6 +322,7 @@ public class AndroidMessenger extends ListActivity {
 			bigBundle.putString("alias", ((BuddyView) v).getAlias());
 			bigBundle.putString("username", ((BuddyView) v).getConnection().getUsername());
 			bigBundle.putInt("connectionId", ((BuddyView) v).getConnection().getId());
+			bigBundle.putString("className", ((BuddyView) v).getConnection().getConnectionClass().getName());
 			int ic = 0;
 			for (Bundle b : waiting) {
 				bigBundle.putBundle(ic + "", b);
@@ -457,6 +467,32 @@ public class AndroidMessenger extends ListActivity {
 			regenList();
 		}
 
+		/**
+		 * Apply a burst of presence changes, then rebuild the list once
+		 * 
+		 * @param aliases
+		 * @param groups
+		 * @param online
+		 */
+		public void setBuddyPresence(String[] aliases, String[] groups, boolean[] online) {
+			for (int i = 0; i < aliases.length; i++) {
+				if (aliases[i] == null)
+					continue;
+				HashMap<String, BuddyView> group = buddyList.get(groups[i]);
+				if (group == null) {
+					logger.severe("Unknown group:" + groups[i]);
+					continue;
+				}
+				BuddyView bv = group.get(aliases[i].toLowerCase());
+				if (bv == null) {
+					logger.severe("Unknown buddy:" + aliases[i]);
+					continue;
+				}
+				bv.setOnline(online[i]);
+			}
+			regenList();
+		}
+
 		public void setBuddyMessageRecieved(String name) {
 			for (String group : buddyList.keySet()) {
 				if (buddyList.get(group).containsKey(name)) {
@@ -534,6 +570,7 @@ public class AndroidMessenger extends ListActivity {
 			AMService am = AMService.Stub.asInterface((IBinder) service);
 			cv.setService(am);
 			try {
+				am.registerCallback(callback);
 				am.Connect(username, password,cvId);
 				cv.setText("Connecting to "
 						+ AMProtocolMapper.getName(cv.getConnectionClass())
@@ -683,6 +720,9 @@ public class AndroidMessenger extends ListActivity {
 		}
 	}
 
+	/**
+	 * Listens for requests from the conversation window
+	 */
 	private class AMListener extends IntentReceiver {
 		private AndroidMessenger c;
 
@@ -695,99 +735,178 @@ public class AndroidMessenger extends ListActivity {
 
 			String purpose = (String) intent.getStringExtra("purpose");
 			logger.info("Recieved intent with purpose: " + purpose);
-			ConnectionView cv = null;
-			int id = intent.getIntExtra("connectionId",-1);
-			if(id != -1){
-				cv = getConnection(id);
-			}else{
-				cv = getConnection( intent
-						.getStringExtra("username"), intent
-						.getStringExtra("password"), intent
-						.getStringExtra("className"));
-			}
-			if (cv == null) {
-				logger.severe("COULDNT FIND CV.... BAD!!!!!!!!!!!!!!!!!");
-				logger.severe("Tried: " + id + ","+ intent.getStringExtra("username"));
-				return;
-			}
-			if (purpose.equals("signOnSuccess")) {
-				cv.setText("Connected!");
-				cv.setConnected(true);
-				bla.notifyDataSetChanged();
-			} else if (purpose.equals("config")) {
-				parseConfig(intent.getExtras(), cv);
-			} else if (purpose.equals("resumeBuddyList")) {
+			if (purpose.equals("resumeBuddyList")) {
 				c.onResume();
 				c.getWindow().makeActive();
 				c.getTaskId();
 				c.getWindow().closeAllPanels();
 				getWindow().makeActive();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Find the connection an event is for
+	 * 
+	 * @param id the connectionId
+	 * @return the connection, or null if there is none
+	 */
+	private ConnectionView lookupConnection(int id) {
+		ConnectionView cv = getConnection(id);
+		if (cv == null) {
+			logger.severe("COULDNT FIND CV.... BAD!!!!!!!!!!!!!!!!!");
+			logger.severe("Tried: " + id);
+		}
+		return cv;
+	}
+	
+	/**
+	 * Receives events from the protocol services.  Binder calls arrive on
+	 * the service's thread, so each one is posted to the UI thread.
+	 */
+	private class AMCallback extends AMServiceCallback.Stub {
+		public void onSignOnSuccess(final int connectionId) {
+			handler.post(new Runnable() {
+				public void run() {
+					ConnectionView cv = lookupConnection(connectionId);
+					if (cv == null)
+						return;
+					cv.setText("Connected!");
+					cv.setConnected(true);
+					bla.notifyDataSetChanged();
+				}
+			});
+		}
 
-			} else if (purpose.equals("sendMessage")) {
-				try {
-					AMService am = cv.getService();
-					if (am != null)
-						am.sendMessage(intent.getStringExtra("buddyName"),
-								intent.getStringExtra("message"));
-					else {
-						// TODO error
+		public void onSignOnError(final int connectionId, final String error) {
+			handler.post(new Runnable() {
+				public void run() {
+					ConnectionView cv = lookupConnection(connectionId);
+					if (cv == null)
+						return;
+					cv.setText("Error: " + error);
+					cv.setConnected(false);
+				}
+			});
+		}
+
+		public void onDisconnected(final int connectionId) {
+			handler.post(new Runnable() {
+				public void run() {
+					ConnectionView cv = lookupConnection(connectionId);
+					// TODO Notify of error somehow
+					if (cv != null && cv.getConnected()) {
+						removeBuddies(cv);
+						cv.setConnected(false);
+						cv.setText(AMProtocolMapper
+								.getName(cv.getConnectionClass())
+								+ " : " + cv.getUsername());
 					}
-				} catch (DeadObjectException e) {
-					// TODO Close the service
 				}
-			} else if (purpose.equals("signOnError")) {
-				cv.setText("Error: " + intent.getStringExtra("error"));
-				cv.setConnected(false);
-			} else if (purpose.equals("buddySignOn")) {
-				bla.setBuddyOnline(intent.getStringExtra("alias"), intent
-						.getStringExtra("group"));
-			} else if (purpose.equals("buddySignOff")) {
-				bla.setBuddyOffline(intent.getStringExtra("alias"), intent
-						.getStringExtra("group"));
-			} else if (purpose.equals("messageRecieved")) {
-				if (!connectionWindowOpen) {
-					bla.setBuddyMessageRecieved(intent.getStringExtra("name"));
+			});
+		}
+
+		public void onConfig(final int connectionId, final int buddyCount) {
+			handler.post(new Runnable() {
+				public void run() {
+					ConnectionView cv = lookupConnection(connectionId);
+					if (cv != null)
+						loadConfig(cv, buddyCount);
+				}
+			});
+		}
+
+		public void onBuddyPresence(int connectionId, final String[] names,
+				final String[] aliases, final String[] groups, final boolean[] online) {
+			handler.post(new Runnable() {
+				public void run() {
+					bla.setBuddyPresence(aliases, groups, online);
+				}
+			});
+		}
+
+		public void onMessageReceived(final int connectionId, final String username,
+				final String name, String alias, final String message) {
+			handler.post(new Runnable() {
+				public void run() {
+					ConnectionView cv = lookupConnection(connectionId);
+					if (cv == null || connectionWindowOpen)
+						return;
+					bla.setBuddyMessageRecieved(name);
 					Bundle b = new Bundle();
-					b.putString("name", intent.getStringExtra("name"));
-					b.putString("message", intent.getStringExtra("message"));
-					b.putString("username", intent.getStringExtra("username"));
-					b.putString("password", intent.getStringExtra("password"));
-					b
-							.putString("className", intent
-									.getStringExtra("className"));
+					b.putString("name", name);
+					b.putString("message", message);
+					b.putString("username", username);
+					b.putInt("connectionId", connectionId);
+					b.putString("className", cv.getConnectionClass().getName());
 					waiting.add(b);
 				}
-			} else if (purpose.equals("disconnected")) {
-				// TODO Notify of error somehow
-				if (cv != null && cv.getConnected()) {
-					removeBuddies(cv);
-					cv.setConnected(false);
-					cv.setText(AMProtocolMapper
-							.getName(cv.getConnectionClass())
-							+ " : " + cv.getUsername());
-				}
-			}
+			});
+		}
+
+		public void onMessageSent(int connectionId, int requestId, String[] errors) {
+			// the conversation window sends, and hears about it itself
 		}
 	}
 	/**
-	 * Minor memory cleanup from a hack in ConversationContainer
+	 * Minor memory cleanup from a hack in ConversationContainer, which kept
+	 * its state in these. Done once; nothing writes them any more.
 	 */
 	private void clearPrefs() {
+		SharedPreferences flags = getSharedPreferences(AndroidMessenger.class.toString(), 0);
+		if (flags.getBoolean("prefsCleared", false))
+			return;
 		Class<? extends Object> c = ConversationContainer.class;
-		SharedPreferences.Editor editor = getSharedPreferences(c.toString() + "windows", 0).edit();
-		editor.clear();
-		editor.commit();
-		editor = getSharedPreferences(c.toString() + "aliases", 0).edit();
-		editor.clear();
-		editor.commit();
-		editor = getSharedPreferences(c.toString() + "tome", 0).edit();
-		editor.clear();
-		editor.commit();
-		editor = getSharedPreferences(c.toString() + "meid", 0).edit();
-		editor.clear();
-		editor.commit();		
-		editor = getSharedPreferences(c.toString() + "editing", 0).edit();
-		editor.clear();
+		String[] names = { "windows", "aliases", "tome", "meid", "editing" };
+		for (String name : names) {
+			SharedPreferences.Editor editor = getSharedPreferences(c.toString() + name, 0).edit();
+			editor.clear();
+			editor.commit();
+		}
+		SharedPreferences.Editor editor = flags.edit();
+		editor.putBoolean("prefsCleared", true);
 		editor.commit();
 	}
+	
+	/**
+	 * Reads a buddy list from its service one page per run, posting
+	 * itself again until the list is done so the UI stays responsive
+	 */
+	private class ConfigLoader implements Runnable {
+		private final ConnectionView cv;
+		private final int count;
+		private int offset = 0;
+
+		public ConfigLoader(ConnectionView cv, int count) {
+			this.cv = cv;
+			this.count = count;
+		}
+
+		public void run() {
+			AMService am = cv.getService();
+			if (am == null) {
+				finish();
+				return;
+			}
+			String[] page;
+			try {
+				page = am.getBuddyPage(cv.getId(), offset, CONFIG_PAGE_SIZE);
+			} catch (DeadObjectException e) {
+				finish();
+				return;
+			}
+			parseConfig(page, cv);
+			offset += page.length / 4;
+			if (page.length > 0 && offset < count)
+				handler.post(this);
+			else
+				finish();
+		}
+
+		private void finish() {
+			configLoaders.remove(cv.getId());
+			bla.regenList();
+		}
+	}
 }
\ No newline at end of file
@@ -5,19 +5,20 @@
 package com.penn.cis121.androidmessenger;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
 import android.app.Activity;
-import android.content.Context;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.IntentReceiver;
-import android.content.SharedPreferences;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.IBinder;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
@@ -43,6 +44,8 @@ public class ConversationContainer extends Activity {
 	/* Store information on the connection for each buddy */
 	private Map<String, String> buddyToMe;
 	private Map<String, Integer> buddyToConnectionId;
+	/* Owns all of the above; they outlive this activity */
+	private ConversationStore store;
 
 	private String currentBuddy;
 	private ButtonListener bl;
@@ -55,7 +58,14 @@ public class ConversationContainer extends Activity {
 	private ScrollView scroller;
 	private Button closeButton;
 
-	private ConversationReciever aml;
+	/* Bound protocol services, by class name, each with its own callback registered */
+	private Map<String, ServiceBinding> services;
+	/* connectionId -> the service hosting that connection */
+	private Map<Integer, ServiceBinding> connections;
+	/* requestId -> the buddy each message in that send went to */
+	private Map<Integer, String[]> pendingSends;
+	private int nextRequestId = 1;
+	private Handler handler;
 
 
 	@Override
@@ -66,19 +76,23 @@ public class ConversationContainer extends Activity {
 		
 		setupUIComponents();
 		
-		aml = new ConversationReciever();
-		registerReceiver(aml, new IntentFilter("AndroidMessenger"));
+		handler = new Handler();
+		services = new HashMap<String, ServiceBinding>();
+		connections = new HashMap<Integer, ServiceBinding>();
+		pendingSends = new HashMap<Integer, String[]>();
+		bindProtocol(getIntent().getStringExtra("className"), getIntent().getIntExtra("connectionId", -1));
 
-		windows = new ArrayList<String>();
-		editing = new HashMap<String, String>();
-		messages = new HashMap<String, List<String>>();
-		nameFromAlias = new HashMap<String, String>();
+		// Attach to the conversations kept since the window was last open
+		store = ConversationStore.get();
+		windows = store.getWindows();
+		editing = store.getEditing();
+		messages = store.getMessages();
+		nameFromAlias = store.getNameFromAlias();
 		buttons = new ArrayList<Button>();
-		buddyToMe = new HashMap<String, String>();
-		buddyToConnectionId = new HashMap<String, Integer>();
+		buddyToMe = store.getBuddyToMe();
+		buddyToConnectionId = store.getBuddyToConnectionId();
 		
 		makeWindows();
-		reloadPrefs();
 		
 		Intent i = getIntent();
 		Bundle bb = i.getExtras();
@@ -91,7 +105,7 @@ public class ConversationContainer extends Activity {
 				buddyToMe.put(name, me);
 				buddyToConnectionId.put(me,bb.getInt("connectionId"));
 				nameFromAlias.put(alias, name);
-				messages.put(name, new LinkedList<String>());
+				store.getMessages(name);
 				editing.put(name, "");
 				Button b = addButton(name);
 				b.performClick(); //fire the onFocusChanged				
@@ -113,6 +127,7 @@ public class ConversationContainer extends Activity {
 		 */
 		for (int x = 0; x < bb.getInt("numwaiting"); x++) {
 			Bundle b = bb.getBundle(x + "");
+			bindProtocol(b.getString("className"), b.getInt("connectionId"));
 			handleMessage(b.getString("name"), b.getString("message"), b
 					.getString("username"), b.getInt("connectionId"));
 			logger.severe(b.getString("name") + "," + b.getString("message"));
@@ -122,10 +137,48 @@ public class ConversationContainer extends Activity {
 	}
 	public void onDestroy(){
 		super.onDestroy();
-		unregisterReceiver(aml);
+		for (ServiceBinding sb : services.values()) {
+			sb.release();
+			unbindService(sb);
+		}
+		services.clear();
+	}
+	
+	/**
+	 * Bind to a protocol service, once, to send on a connection it hosts
+	 * and hear about incoming messages
+	 * 
+	 * @param className the service class
+	 * @param connectionId a connection that service hosts
+	 */
+	private void bindProtocol(String className, int connectionId) {
+		if (className == null)
+			return;
+		ServiceBinding sb = services.get(className);
+		if (sb == null) {
+			try {
+				sb = new ServiceBinding();
+				bindService(new Intent(this, getClassLoader().loadClass(className)), sb, BIND_AUTO_CREATE);
+				services.put(className, sb);
+			} catch (ClassNotFoundException e) {
+				logger.severe("Unknown protocol " + className);
+				return;
+			}
+		}
+		connections.put(connectionId, sb);
 	}
 	
 	
+	/**
+	 * Put back a button for each conversation still open in the store
+	 */
+	private void makeWindows(){
+		List<String> open = new ArrayList<String>(windows);
+		windows.clear();
+		for (String s : open)
+			addButton(s);
+	}
+	
 	private void setupUIComponents(){
 		setContentView(R.layout.conversationcontainer);
 		bl = new ButtonListener();
@@ -233,8 +286,7 @@ public class ConversationContainer extends Activity {
 		if(!buddyToConnectionId.containsKey(username)){
 			buddyToConnectionId.put(username,connectionId);
 		}		
-		if (!messages.containsKey(buddyName))
-			messages.put(buddyName, new LinkedList<String>());
+		store.getMessages(buddyName);
 		
 		lastMessage = buddyName + ": " + message + "\n";
 		messages.get(buddyName).add(lastMessage);
@@ -252,6 +304,24 @@ public class ConversationContainer extends Activity {
 		}
 		regenLayout();
 	}
+	
+	/**
+	 * Note any messages from a send that did not go out
+	 * 
+	 * @param requestId the send
+	 * @param errors one per message, null where it was sent
+	 */
+	private void handleSent(int requestId, String[] errors) {
+		String[] buddies = pendingSends.remove(requestId);
+		if (buddies == null)
+			return;
+		for (int i = 0; i < buddies.length && i < errors.length; i++) {
+			if (errors[i] == null)
+				continue;
+			store.getMessages(buddies[i]).add("(not sent: " + errors[i] + ")\n");
+		}
+		regenLayout();
+	}
 
 	private class ButtonListener implements OnFocusChangeListener,
 			OnClickListener, OnKeyListener {
@@ -312,207 +382,142 @@ public class ConversationContainer extends Activity {
 					return false;
 				if((from + ": " +msg + "\n").equals(lastMessage))
 					return false;
-				Intent i = new Intent();
-				i.setAction("AndroidMessenger");
-				i.putExtra("purpose", "sendMessage");
-				i.putExtra("connectionId",buddyToConnectionId.get(from));
-				i.putExtra("message", msg);
-				i.putExtra("buddyName", currentBuddy);
-				broadcastIntent(i);
 				input.setText("");
 				lastMessage = from + ": " + msg + "\n";
 				messages.get(currentBuddy).add(lastMessage);
+				// returns at once; onMessageSent says how it went
+				Integer connectionId = buddyToConnectionId.get(from);
+				ServiceBinding sb = connectionId == null ? null : connections.get(connectionId);
+				if (sb != null)
+					sb.send(connectionId, currentBuddy, msg);
+				else
+					messages.get(currentBuddy).add("(not sent: Not connected)\n");
 				regenLayout();
 				return true;
 			}
 			return false;
 		}
 	}
-	private class ConversationReciever extends IntentReceiver {
-		@Override
-		public void onReceiveIntent(Context arg0, Intent intent) {
-			String purpose = intent.getStringExtra("purpose");
-			if (purpose.equals("messageRecieved")) {
-				handleMessage( intent.getStringExtra("name"),
-						intent.getStringExtra("message"),
-						intent.getStringExtra("username"), 
-						intent.getIntExtra("connectionId",0)
-						);
+	private class ServiceBinding implements ServiceConnection {
+		private AMService am;
+		private final ConversationCallback callback = new ConversationCallback(this);
+		/* connectionId -> buddy, message pairs typed before the service was bound */
+		private final Map<Integer, List<String[]>> queued = new HashMap<Integer, List<String[]>>();
+		
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			am = AMService.Stub.asInterface(service);
+			try {
+				am.registerCallback(callback);
+			} catch (DeadObjectException e) {
+				am = null;
+				return;
 			}
+			flushQueued();
+		}
+		
+		/**
+		 * Hand a message to the service, or hold it until we are bound
+		 */
+		void send(int connectionId, String buddyName, String message) {
+			if (am == null) {
+				if (!queued.containsKey(connectionId))
+					queued.put(connectionId, new ArrayList<String[]>());
+				queued.get(connectionId).add(new String[] {buddyName, message});
+				return;
+			}
+			int requestId = nextRequestId++;
+			pendingSends.put(requestId, new String[] {buddyName});
+			try {
+				am.sendMessage(connectionId, requestId, buddyName, message);
+			} catch (DeadObjectException e) {
+				handleSent(requestId, new String[] {"Not connected"});
+			}
+		}
+		
+		/**
+		 * Send everything held while binding, one batch per connection
+		 */
+		private void flushQueued() {
+			for (Map.Entry<Integer, List<String[]>> e : queued.entrySet()) {
+				List<String[]> q = e.getValue();
+				String[] buddyNames = new String[q.size()];
+				String[] messageTexts = new String[q.size()];
+				for (int i = 0; i < q.size(); i++) {
+					buddyNames[i] = q.get(i)[0];
+					messageTexts[i] = q.get(i)[1];
+				}
+				int requestId = nextRequestId++;
+				pendingSends.put(requestId, buddyNames);
+				try {
+					am.sendMessages(e.getKey(), requestId, buddyNames, messageTexts);
+				} catch (DeadObjectException ex) {
+					String[] errors = new String[buddyNames.length];
+					Arrays.fill(errors, "Not connected");
+					handleSent(requestId, errors);
+				}
+			}
+			queued.clear();
+		}
+		
+		public void onServiceDisconnected(ComponentName name) {
+			am = null;
+		}
+		
+		void release() {
+			if (am == null)
+				return;
+			try {
+				am.unregisterCallback(callback);
+			} catch (DeadObjectException e) {
+				// already gone
+			}
+			am = null;
 		}
-
 	}
 	
-	/*
-	 * The below functions can be classified as 
-	 * "Terrible horrible ugly bad never do this its no good HACK" 
-	 * (Only the first 3 are used.  The second 2 are for if we could onFreeze() but we can't)
-	 * (The actual hack is using SharedPreferences to emulate persistent memory)
-	 * 
-	 * 
-	 *  I've had some discussion with Android developers on IRC and read
-	 *  lots of documentation; and thus far there is no _good_ way of maintaining state
-	 *  in between switches back and fourth from conversation page to the 
-	 *  main buddy list.  Hence every time we re-open the conversation pain we need to
-	 *  rebuild all of the UI from saved (serialized) state.  The below code does that 
-	 *  saving and serialization.  Even the way we're saving data isn't the best way
-	 *  and likely leaks a bit.  Its just _bad_.  But as the SDK develops i'm sure
-	 *  a better solution will arise.  For now we leave it.
-	 * 
+	/**
+	 * Only messages in and out matter here; they are posted to the UI thread
 	 */
-	private void makeWindows(){
-		SharedPreferences prefs = getSharedPreferences(getClass().toString()+"windows", 0);
-		 Map<String,? extends Object> map = prefs.getAll();
-		 for(String s : map.keySet()){
-			 logger.severe("Adding button for " + s);
-			 addButton(s);
-		 } 		 
-	}
-	public void reloadPrefs() {			
-		 SharedPreferences prefs = getSharedPreferences(getClass().toString()+"editing", 0);
-		 Map<String,? extends Object> map = prefs.getAll();
-         for(String buddy : map.keySet()){
-        	 editing.put(buddy, (String)map.get(buddy));                       
-         }
-         prefs = getSharedPreferences(getClass().toString()+"aliases", 0);
-         map = prefs.getAll();
-         for(String buddy : map.keySet()){
-        	 nameFromAlias.put(buddy, (String)map.get(buddy));                       
-         }
-         prefs = getSharedPreferences(getClass().toString()+"tome", 0);
-         map = prefs.getAll();
-         for(String buddy : map.keySet()){
-        	 buddyToMe.put(buddy, (String)map.get(buddy));                       
-         }
-         prefs = getSharedPreferences(getClass().toString()+"meid", 0);
-         map = prefs.getAll();
-         for(String buddy : map.keySet()){
-        	 buddyToConnectionId.put(buddy, (Integer)map.get(buddy));                       
-         }
-         for(String buddy : windows){
-             prefs = getSharedPreferences(getClass().toString()+"messages"+buddy, 0);
-             map = prefs.getAll();
-             if(!messages.containsKey(buddy))
-            	 messages.put(buddy,new ArrayList<String>());
-             logger.info("Restoring messages for " + buddy + " (#" + map.keySet().size()+")");
-             for(String message : map.keySet()){
-            	 messages.get(buddy).add(message);                       
-             }
-         }
-	}
-	
-    @Override
-    protected void onPause() {
-        super.onPause();        
-        SharedPreferences.Editor editor = getSharedPreferences(getClass().toString()+"windows", 0).edit();        
-        for(String s : windows){
-        	editor.putString(s,s);
-        }
-        editor.commit();
-        editor = getSharedPreferences(getClass().toString()+"aliases", 0).edit();
-        for(String buddy : nameFromAlias.keySet()){                      
-            editor.putString(buddy,nameFromAlias.get(buddy));                       
-        }
-        editor.commit();
-        editor = getSharedPreferences(getClass().toString()+"tome", 0).edit();
-        for(String buddy : buddyToMe.keySet()){                      
-            editor.putString(buddy,buddyToMe.get(buddy));                       
-        }
-        editor.commit();
-        editor = getSharedPreferences(getClass().toString()+"meid", 0).edit();
-        for(String buddy : buddyToConnectionId.keySet()){                      
-            editor.putInt(buddy,buddyToConnectionId.get(buddy));                       
-        }
-        editor.commit();
-        editor = getSharedPreferences(getClass().toString()+"editing", 0).edit();
-        for(String buddy : editing.keySet()){                      
-            editor.putString(buddy,editing.get(buddy));                       
-        }
-        editor.commit();
-        for(String buddy : messages.keySet()){
-            editor = getSharedPreferences(getClass().toString()+"messages"+buddy, 0).edit();
-            logger.info("Saving messages for " + buddy + " (#" + messages.get(buddy).size()+")");
-            for(String msg : messages.get(buddy))
-            	editor.putString(msg,"");
-            editor.commit();            
-        }        
-    }
-    /*	
-	private void restoreFromBundle(Bundle state) {
-		rowContainer.removeAllViews();
+	private class ConversationCallback extends AMServiceCallback.Stub {
+		private final ServiceBinding binding;
 		
-		Bundle windowBundle = state.getBundle("windowBundle");
-		Bundle NFABundle = state.getBundle("NFABundle");
-		Bundle BTMBundle = state.getBundle("BTMBundle");
-		Bundle MPWBundle = state.getBundle("MPWBundle");
-		Bundle MClassBundle = state.getBundle("MClassBundle");
-		Bundle EditingBundle = state.getBundle("EditingBundle");
-		Bundle MessageBundle = state.getBundle("MessageBundle");
+		public ConversationCallback(ServiceBinding binding) {
+			this.binding = binding;
+		}
 		
-		for (String s : windowBundle.keySet())
-			addButton(s);
+		public void onMessageReceived(final int connectionId, final String username,
+				final String name, String alias, final String message) {
+			handler.post(new Runnable() {
+				public void run() {
+					// replies to this connection go back through the same service
+					connections.put(connectionId, binding);
+					handleMessage(name, message, username, connectionId);
+				}
+			});
+		}
 		
-		for (String buddy : EditingBundle.keySet())
-			editing.put(buddy, (String) EditingBundle.getString(buddy));
+		public void onMessageSent(int connectionId, final int requestId, final String[] errors) {
+			handler.post(new Runnable() {
+				public void run() {
+					handleSent(requestId, errors);
+				}
+			});
+		}
 		
-		for (String buddy : NFABundle.keySet())
-			nameFromAlias.put(buddy, (String) NFABundle.getString(buddy));
+		public void onSignOnSuccess(int connectionId) {
+		}
 		
-		for (String buddy : BTMBundle.keySet())
-			buddyToMe.put(buddy, (String) BTMBundle.getString(buddy));
+		public void onSignOnError(int connectionId, String error) {
+		}
 		
-		for (String buddy : MPWBundle.keySet())
-			mePw.put(buddy, (String) MPWBundle.getString(buddy));
+		public void onDisconnected(int connectionId) {
+		}
 		
-		for (String buddy : MClassBundle.keySet())
-			meClass.put(buddy, (String) MClassBundle.getString(buddy));
+		public void onConfig(int connectionId, int buddyCount) {
+		}
 		
-		for (String buddy : MessageBundle.keySet()) {
-			if (!messages.containsKey(buddy))
-				messages.put(buddy, new ArrayList<String>());
-			messages.get(buddy).add(MessageBundle.getString(buddy));
+		public void onBuddyPresence(int connectionId, String[] names, String[] aliases,
+				String[] groups, boolean[] online) {
 		}
 	}
-
-	/**
-	 * Any time we are paused we need to save away the current state, so it will
-	 * be restored correctly when we are resumed.
-	 *//*
-	@Override
-	protected void onFreeze(Bundle outBundle) {
-		logger.severe("Inside onFreeze");
-		Bundle windowBundle = new Bundle();
-		Bundle NFABundle = new Bundle();
-		Bundle BTMBundle = new Bundle();
-		Bundle MPWBundle = new Bundle();
-		Bundle MClassBundle = new Bundle();
-		Bundle EditingBundle = new Bundle();
-		Bundle MessageBundle = new Bundle();
-		for (String s : windows)
-			windowBundle.putString(s, s);
-		for (String buddy : nameFromAlias.keySet())
-			NFABundle.putString(buddy, nameFromAlias.get(buddy));
-		for (String buddy : buddyToMe.keySet())
-			BTMBundle.putString(buddy, buddyToMe.get(buddy));
-		for (String buddy : mePw.keySet())
-			MPWBundle.putString(buddy, mePw.get(buddy));
-		for (String buddy : meClass.keySet())
-			MClassBundle.putString(buddy, meClass.get(buddy));
-		for (String buddy : editing.keySet())
-			EditingBundle.putString(buddy, editing.get(buddy));
-		for (String buddy : messages.keySet()) {
-			String big = "";
-			for (String msg : messages.get(buddy))
-				big += msg;
-			MessageBundle.putString(buddy, big);
-		}
-		outBundle.putBundle("windowBundle", windowBundle);
-		outBundle.putBundle("NFABundle", NFABundle);
-		outBundle.putBundle("BTMBundle", BTMBundle);
-		outBundle.putBundle("MPWBundle", MPWBundle);
-		outBundle.putBundle("MClassBundle", MClassBundle);
-		outBundle.putBundle("EditingBundle", EditingBundle);
-		outBundle.putBundle("MessageBundle", MessageBundle);
-		super.onFreeze(outBundle);
-	}*/
 }
@@ -0,0 +1,92 @@
+/**
+ * @author - Zachary Goldberg @ 2008
+ */
+package com.penn.cis121.androidmessenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Everything the conversation window shows, kept for the life of the process.
+ * ConversationContainer attaches to the one instance when it is created, so
+ * reopening the window picks up where it left off instead of rebuilding its
+ * state.  Only touched from the UI thread.
+ */
+public class ConversationStore {
+	private static ConversationStore instance;
+
+	/* Open conversations, in button order */
+	private final List<String> windows = new ArrayList<String>();
+	/* buddy -> text typed but not sent yet */
+	private final HashMap<String, String> editing = new HashMap<String, String>();
+	/* buddy -> the conversation so far, one line per entry */
+	private final HashMap<String, List<String>> messages = new HashMap<String, List<String>>();
+	private final HashMap<String, String> nameFromAlias = new HashMap<String, String>();
+	/* buddy -> our screen name on the connection we talk to them on */
+	private final HashMap<String, String> buddyToMe = new HashMap<String, String>();
+	/* our screen name -> the id of that connection */
+	private final HashMap<String, Integer> buddyToConnectionId = new HashMap<String, Integer>();
+
+	private ConversationStore() {
+	}
+
+	public static synchronized ConversationStore get() {
+		if (instance == null)
+			instance = new ConversationStore();
+		return instance;
+	}
+
+	/**
+	 * Forget everything; the connections it refers to are gone once the
+	 * main activity is created again
+	 */
+	public void reset() {
+		windows.clear();
+		editing.clear();
+		messages.clear();
+		nameFromAlias.clear();
+		buddyToMe.clear();
+		buddyToConnectionId.clear();
+	}
+
+	public List<String> getWindows() {
+		return windows;
+	}
+
+	public HashMap<String, String> getEditing() {
+		return editing;
+	}
+
+	public HashMap<String, List<String>> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * The log for one buddy, started if there is none yet
+	 * 
+	 * @param buddy the buddy's screen name
+	 * @return the live list; add to it to log a line
+	 */
+	public List<String> getMessages(String buddy) {
+		List<String> log = messages.get(buddy);
+		if (log == null) {
+			log = new LinkedList<String>();
+			messages.put(buddy, log);
+		}
+		return log;
+	}
+
+	public HashMap<String, String> getNameFromAlias() {
+		return nameFromAlias;
+	}
+
+	public HashMap<String, String> getBuddyToMe() {
+		return buddyToMe;
+	}
+
+	public HashMap<String, Integer> getBuddyToConnectionId() {
+		return buddyToConnectionId;
+	}
+}
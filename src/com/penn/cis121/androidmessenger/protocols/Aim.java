@@ -4,11 +4,19 @@
 package com.penn.cis121.androidmessenger.protocols;
 
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
-import android.os.Bundle;
 import android.os.DeadObjectException;
+import android.os.Handler;
 import android.os.IBinder;
 import android.app.Service;
 import android.content.Intent;
@@ -16,32 +24,40 @@ import android.content.Intent;
 import com.levelonelabs.aim.AIMBuddy;
 import com.levelonelabs.aim.AIMClient;
 import com.levelonelabs.aim.AIMListener;
-import com.penn.cis121.androidmessenger.AMProtocolMapper;
 import com.penn.cis121.androidmessenger.AMService;
+import com.penn.cis121.androidmessenger.AMServiceCallback;
 
 
 /*
  * All Client Classes require the following:
  * extends service and provides an AMService IBinder with all necessary functions implemented
- * Sends the following Intents to action "AndroidMessenger"
- * All intents specify their "purpose" via an extra called "purpose"
- * Format: purpose - other extras, description
- * connected - username, password, className - tell the messenger that we've successfully connected 
+ * Delivers events to every AMServiceCallback registered through registerCallback,
+ * one typed method per event kind, each tagged with the connectionId
+ * Presence changes are gathered over PRESENCE_WINDOW ms and sent as one onBuddyPresence
+ * onConfig only carries the buddy count; the list itself is read with getBuddyPage
+ * sendMessage(s) return at once; the sends run on one shared thread and each call
+ * is answered with onMessageSent
+ *
+ * One Aim service hosts every AIM account: each connectionId gets its own Session,
+ * and binder calls are routed to it by id.  The Handler, the callback list and
+ * AIMClient's timer thread are shared by all of them.
  */
 
-public class Aim extends Service implements AIMListener {
-	private boolean connected = false;
-	private String username;
-	private String password;
-	private int connectionId;
-	
-	private AIMClient aim;
+public class Aim extends Service {
 	static Logger logger = Logger.getLogger(AIMClient.class.getName());
-	
-	static {
-		AMProtocolMapper.addMapping(Aim.class,"AIM");
-	}
-		
+
+	/* connectionId -> the account signed on under it */
+	private final Map<Integer,Session> sessions = new HashMap<Integer,Session>();
+
+	/* Registered clients; dead ones are dropped when a call to them fails */
+	private final List<AMServiceCallback> callbacks = new ArrayList<AMServiceCallback>();
+
+	/* Presence changes are gathered for this long and sent as one callback */
+	private static final long PRESENCE_WINDOW = 250;
+	private Handler handler;
+	/* Runs sends off the binder thread, in the order they were asked for */
+	private ExecutorService sender;
+
 	/* Service Functions */
 	@Override
 	public IBinder onBind(Intent arg0) {
@@ -51,129 +67,382 @@ public class Aim extends Service implements AIMListener {
 				// ConnectAIM("AndroidTest","q1w2e3r4");
 				ConnectAIM(username, password,connectionId);
 			}
-			public void sendMessage(String buddyName, String message) throws DeadObjectException {
-				aim.sendMessage(aim.getBuddy(buddyName), message);				
-			}		
+			public void sendMessage(int connectionId, int requestId, String buddyName, String message) throws DeadObjectException {
+				send(connectionId, requestId, new String[] {buddyName}, new String[] {message});
+			}
+			public void sendMessages(int connectionId, int requestId, String[] buddyNames, String[] messages) throws DeadObjectException {
+				send(connectionId, requestId, buddyNames, messages);
+			}
+			public String[] getBuddyPage(int connectionId, int offset, int count) throws DeadObjectException {
+				Session s = getSession(connectionId);
+				if (s == null)
+					return new String[0];
+				return s.getBuddyPage(offset, count);
+			}
+			public void registerCallback(AMServiceCallback callback) throws DeadObjectException {
+				synchronized (callbacks) {
+					// every account binds separately; register each client once
+					if (indexOf(callback) < 0)
+						callbacks.add(callback);
+				}
+			}
+			public void unregisterCallback(AMServiceCallback callback) throws DeadObjectException {
+				synchronized (callbacks) {
+					int i = indexOf(callback);
+					if (i >= 0)
+						callbacks.remove(i);
+				}
+			}
 		};
 		return mBinder;
-		
-	}	
-	
+
+	}
+
 	@Override
 	protected void onCreate(){
 		super.onCreate();
+		handler = new Handler();
+		sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "aim-send");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 	@Override
 	protected void onDestroy(){
-		if(connected && aim != null)
-			aim.signOff();
+		Session[] all;
+		synchronized (sessions) {
+			all = sessions.values().toArray(new Session[sessions.size()]);
+			sessions.clear();
+		}
+		for (Session s : all)
+			s.close();
+		sender.shutdown();
 		super.onDestroy();
 	}
 	public void ConnectAIM(String username, String password,int connectionId) {
-		this.username = username;
-		this.password = password;
-		this.connectionId = connectionId;
-		
-		aim = new AIMClient(username, password,"",true);
-		// Third option is for profiles; we don't support that for now
-		aim.addAIMListener(this);
-		new Thread(aim).start();
-	}
-	private void sendIntent(String purpose, Bundle b){
-		b.putString("username",username);
-		b.putString("password",password);
-		b.putString("className", getClass().getName().toString());
-		b.putInt("connectionId", connectionId);
-		
-		Intent toAM = new Intent();
-		toAM.setAction("AndroidMessenger"); 
-		toAM.putExtra("purpose", purpose);
-		toAM.putExtras(b);	
-		broadcastIntent(toAM);
+		Session s = new Session(username, password, connectionId);
+		Session old;
+		synchronized (sessions) {
+			old = sessions.put(connectionId, s);
+		}
+		if (old != null)
+			old.close();
+		s.start();
 	}
 
-
-	/* Aim Listener Event Handlers */
-	public void handleConfigReady(Map<String,AIMBuddy> config){
-		Bundle b = new Bundle();
-		for(String s : config.keySet()){
-			AIMBuddy buddy = config.get(s);
-			Bundle bud = new Bundle();
-			bud.putString("name",buddy.getName());
-			bud.putString("group", buddy.getGroup());
-			bud.putString("alias", buddy.getAlias());
-			b.putBundle(s, bud);
+	/**
+	 * Queue messages to go out on the sender thread, then report how each went
+	 */
+	private void send(final int connectionId, final int requestId,
+			final String[] buddyNames, final String[] messages) {
+		try {
+			sender.execute(new Runnable() {
+				public void run() {
+					final String[] errors = new String[buddyNames.length];
+					Session s = getSession(connectionId);
+					for (int i = 0; i < buddyNames.length; i++) {
+						if (s == null)
+							errors[i] = "Not connected";
+						else if (i >= messages.length)
+							errors[i] = "No message";
+						else
+							errors[i] = s.send(buddyNames[i], messages[i]);
+					}
+					dispatch(new Event() {
+						void send(AMServiceCallback callback) throws DeadObjectException {
+							callback.onMessageSent(connectionId, requestId, errors);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warning("Service shutting down, dropping send " + requestId);
 		}
-		sendIntent("config",b);
 	}
-	
-	public void handleBuddySignOff(AIMBuddy buddy, String info) {
-		Bundle b = new Bundle();
-		b.putString("name",buddy.getName());
-		b.putString("alias",buddy.getAlias());
-		b.putString("group", buddy.getGroup());
-		b.putString("protocol",AMProtocolMapper.getName(this.getClass()));
-		sendIntent("buddySignOff", b);
+
+	private Session getSession(int connectionId) {
+		synchronized (sessions) {
+			return sessions.get(connectionId);
+		}
 	}
 
-	public void handleBuddySignOn(AIMBuddy buddy, String info) {
-		Bundle b = new Bundle();
-		b.putString("name",buddy.getName());
-		b.putString("alias",buddy.getAlias());
-		b.putString("group", buddy.getGroup());
-		b.putString("protocol",AMProtocolMapper.getName(this.getClass()));
-		sendIntent("buddySignOn", b);
+	/** Call with callbacks held */
+	private int indexOf(AMServiceCallback callback) {
+		for (int i = 0; i < callbacks.size(); i++) {
+			if (callbacks.get(i).asBinder() == callback.asBinder())
+				return i;
+		}
+		return -1;
 	}
-	public void handleConnected() {
-		Bundle b = new Bundle();
-		sendIntent("signOnSuccess",b);
-		connected = true;
+	/**
+	 * One event, sent to each registered callback in turn
+	 */
+	private abstract class Event {
+		abstract void send(AMServiceCallback callback) throws DeadObjectException;
 	}
-	
-	public void handleDisconnected() {
-		if(connected){
-			connected = false;
-			Bundle b = new Bundle();
-			sendIntent("disconnected",b);
+
+	private void dispatch(Event e) {
+		AMServiceCallback[] targets;
+		synchronized (callbacks) {
+			targets = callbacks.toArray(new AMServiceCallback[callbacks.size()]);
+		}
+		for (AMServiceCallback callback : targets) {
+			try {
+				e.send(callback);
+			} catch (DeadObjectException dead) {
+				// the client went away without unregistering
+				synchronized (callbacks) {
+					callbacks.remove(callback);
+				}
+			}
 		}
 	}
 
-	public void handleError(String error, String message) {
-		Bundle b = new Bundle();
-		b.putString("error", message);
-		sendIntent("signOnError",b);
-	}
+	/**
+	 * One signed on account: its AIMClient and the presence changes
+	 * waiting to be sent for it
+	 */
+	private class Session implements AIMListener {
+		// read by the sender thread
+		private volatile boolean connected = false;
+		// set once replaced or shut down; its events are no longer wanted
+		private volatile boolean closed = false;
+		private final String username;
+		private final String password;
+		private final int connectionId;
+		private final AIMClient aim;
+		// the buddies in the last config, read by page
+		private volatile AIMBuddy[] config = new AIMBuddy[0];
 
-	public void handleMessage(AIMBuddy buddy, String request) {
-		Bundle b = new Bundle();
-		b.putString("name",buddy.getName());
-		b.putString("alias",buddy.getAlias());
-		b.putString("message", request);
-		sendIntent("messageRecieved", b);
+		// buddy name -> latest change, in the order they happened
+		private final Map<String,PresenceChange> presence = new LinkedHashMap<String,PresenceChange>();
+		private boolean presenceFlushPending = false;
+		private final Runnable presenceFlush = new Runnable() {
+			public void run() {
+				flushPresence();
+			}
+		};
 
-	}
+		Session(String username, String password, int connectionId) {
+			this.username = username;
+			this.password = password;
+			this.connectionId = connectionId;
+			// Third option is for profiles; we don't support that for now
+			aim = new AIMClient(username, password,"",true);
+			aim.setConfigCache(getFileStreamPath("aim-" + username.toLowerCase().replaceAll(" ", "") + ".config"));
+			aim.addAIMListener(this);
+		}
 
-	public void handleWarning(AIMBuddy buddy, int amount) {
-		/* Unimplemented */
-	}
-	public void handleBuddyAvailable(AIMBuddy buddy, String message) {		
-		/* UnImplemented
-		Bundle b = new Bundle();
-		b.putString("name",buddy.getName());
-		b.putString("group", buddy.getGroup());
-		b.putString("protocol",AMProtocolMapper.getName(this.getClass()));
-		sendIntent("buddyBack", b);
-		*/
+		void start() {
+			// show the last known buddy list while the real one downloads
+			aim.loadCachedConfig();
+			aim.connect();
+		}
+
+		void close() {
+			closed = true;
+			handler.removeCallbacks(presenceFlush);
+			// also stops a sign on or reconnect still in progress
+			aim.signOff();
+		}
+
+		/**
+		 * Send one IM
+		 * 
+		 * @return null if it went out, otherwise why not
+		 */
+		String send(String buddyName, String message) {
+			if (!connected)
+				return "Not connected";
+			AIMBuddy buddy = aim.getBuddy(buddyName);
+			if (buddy == null)
+				return buddyName + " is not on the buddy list";
+			if (buddy.isBanned())
+				return buddyName + " is banned";
+			boolean online = buddy.isOnline();
+			// to an offline buddy this asks for their status instead
+			aim.sendMessage(buddy, message);
+			if (!online)
+				return buddyName + " is offline";
+			return connected ? null : "Connection lost";
+		}
+
+		private void report(Event e) {
+			if (!closed)
+				dispatch(e);
+		}
+
+
+		/**
+		 * Copy out part of the buddy list
+		 * 
+		 * @return name, group, alias and online ("true"/"false") for each buddy
+		 *         in the range; empty past the end
+		 */
+		String[] getBuddyPage(int offset, int count) {
+			AIMBuddy[] all = config;
+			if (offset < 0 || offset >= all.length || count <= 0)
+				return new String[0];
+			int n = Math.min(count, all.length - offset);
+			String[] page = new String[n * 4];
+			for (int i = 0; i < n; i++) {
+				AIMBuddy buddy = all[offset + i];
+				page[i * 4] = buddy.getName();
+				page[i * 4 + 1] = buddy.getGroup();
+				page[i * 4 + 2] = buddy.getAlias();
+				// read now, so a change the client dropped before it knew
+				// the buddy is not lost
+				page[i * 4 + 3] = String.valueOf(buddy.isOnline());
+			}
+			return page;
+		}
+
+
+		/* Aim Listener Event Handlers */
+		public void handleConfigReady(Map<String,AIMBuddy> buddies){
+			AIMBuddy[] all = buddies.values().toArray(new AIMBuddy[buddies.size()]);
+			config = all;
+			final int count = all.length;
+			// only the size goes out; clients read the list with getBuddyPage
+			report(new Event() {
+				void send(AMServiceCallback callback) throws DeadObjectException {
+					callback.onConfig(connectionId, count);
+				}
+			});
+		}
+
+		public void handleBuddySignOff(AIMBuddy buddy, String info) {
+			queuePresence(buddy, false);
+		}
+
+		public void handleBuddySignOn(AIMBuddy buddy, String info) {
+			queuePresence(buddy, true);
+		}
+
+		/* Presence batching */
+
+		/**
+		 * Remember a sign on or off, and have it sent with the rest of the
+		 * burst once the window closes.  Called on the AIMClient thread.
+		 */
+		private void queuePresence(AIMBuddy buddy, boolean online) {
+			synchronized (presence) {
+				// only the latest change for a buddy matters
+				presence.remove(buddy.getName());
+				presence.put(buddy.getName(), new PresenceChange(buddy, online));
+				if (presenceFlushPending)
+					return;
+				presenceFlushPending = true;
+			}
+			handler.postDelayed(presenceFlush, PRESENCE_WINDOW);
+		}
+
+		/**
+		 * Send every change gathered since the last flush as one callback
+		 */
+		private void flushPresence() {
+			PresenceChange[] changes;
+			synchronized (presence) {
+				changes = presence.values().toArray(new PresenceChange[presence.size()]);
+				presence.clear();
+				presenceFlushPending = false;
+			}
+			if (changes.length == 0)
+				return;
+			final String[] names = new String[changes.length];
+			final String[] aliases = new String[changes.length];
+			final String[] groups = new String[changes.length];
+			final boolean[] online = new boolean[changes.length];
+			for (int i = 0; i < changes.length; i++) {
+				names[i] = changes[i].name;
+				aliases[i] = changes[i].alias;
+				groups[i] = changes[i].group;
+				online[i] = changes[i].online;
+			}
+			report(new Event() {
+				void send(AMServiceCallback callback) throws DeadObjectException {
+					callback.onBuddyPresence(connectionId, names, aliases, groups, online);
+				}
+			});
+		}
+
+		public void handleConnected() {
+			connected = true;
+			report(new Event() {
+				void send(AMServiceCallback callback) throws DeadObjectException {
+					callback.onSignOnSuccess(connectionId);
+				}
+			});
+		}
+
+		public void handleDisconnected() {
+			if(connected){
+				connected = false;
+				report(new Event() {
+					void send(AMServiceCallback callback) throws DeadObjectException {
+						callback.onDisconnected(connectionId);
+					}
+				});
+			}
+		}
+
+		public void handleError(String error, final String message) {
+			report(new Event() {
+				void send(AMServiceCallback callback) throws DeadObjectException {
+					callback.onSignOnError(connectionId, message);
+				}
+			});
+		}
+
+		public void handleMessage(AIMBuddy buddy, final String request) {
+			final String name = buddy.getName();
+			final String alias = buddy.getAlias();
+			report(new Event() {
+				void send(AMServiceCallback callback) throws DeadObjectException {
+					callback.onMessageReceived(connectionId, username, name, alias, request);
+				}
+			});
+		}
+
+		public void handleWarning(AIMBuddy buddy, int amount) {
+			/* Unimplemented */
+		}
+		public void handleBuddyAvailable(AIMBuddy buddy, String message) {
+			/* UnImplemented
+			Bundle b = new Bundle();
+			b.putString("name",buddy.getName());
+			b.putString("group", buddy.getGroup());
+			b.putString("protocol",AMProtocolMapper.getName(this.getClass()));
+			sendIntent("buddyBack", b);
+			*/
+		}
+
+		public void handleBuddyUnavailable(AIMBuddy buddy, String message) {
+			/* UnImplemented in Messenger
+			Bundle b = new Bundle();
+			b.putString("name",buddy.getName());
+			b.putString("group", buddy.getGroup());
+			b.putString("protocol",AMProtocolMapper.getName(this.getClass()));
+			sendIntent("buddyAway", b);
+			*/
+		}
 	}
 
-	public void handleBuddyUnavailable(AIMBuddy buddy, String message) {
-		/* UnImplemented in Messenger
-		Bundle b = new Bundle();
-		b.putString("name",buddy.getName());
-		b.putString("group", buddy.getGroup());
-		b.putString("protocol",AMProtocolMapper.getName(this.getClass()));
-		sendIntent("buddyAway", b);
-		*/
+	private static class PresenceChange {
+		final String name;
+		final String alias;
+		final String group;
+		final boolean online;
+
+		PresenceChange(AIMBuddy buddy, boolean online) {
+			this.name = buddy.getName();
+			this.alias = buddy.getAlias();
+			this.group = buddy.getGroup();
+			this.online = online;
+		}
 	}
 
 